@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.Rect;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that AudioAreaIndex entries can be found and removed after ids have been reused, either via removal or
+ * because the index was cleared.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AudioAreaIndexTest {
+
+	@Test
+	public void removeAfterClearAndReAdd() {
+		AudioAreaIndex index = new AudioAreaIndex();
+		Rect rect = new Rect(10, 10, 50, 50);
+		index.remove(index.add(rect));
+		index.clear(); // as when switching modes, or replacing a page's areas
+
+		final int id = index.add(rect);
+		assertEquals(0, id);
+		assertEquals(id, index.find(rect));
+		assertEquals(1, index.findIntersecting(rect));
+
+		index.remove(index.find(rect));
+		assertEquals(-1, index.find(rect));
+		assertEquals(0, index.findIntersecting(rect));
+	}
+
+	@Test
+	public void removedIdsAreReused() {
+		AudioAreaIndex index = new AudioAreaIndex();
+		final int first = index.add(new Rect(0, 0, 10, 10));
+		index.add(new Rect(20, 20, 30, 30));
+		index.remove(first);
+		index.remove(first); // ignored, so the id is only reused once
+
+		assertEquals(first, index.add(new Rect(40, 40, 50, 50)));
+		assertEquals(2, index.add(new Rect(60, 60, 70, 70)));
+		assertEquals(3, index.size());
+	}
+
+	@Test
+	public void emptyAndInvertedRectsCanBeFoundAndRemoved() {
+		AudioAreaIndex index = new AudioAreaIndex();
+		Rect empty = new Rect(100, 100, 100, 140);
+		Rect inverted = new Rect(300, 300, 200, 200);
+		final int emptyId = index.add(empty);
+		final int invertedId = index.add(inverted);
+
+		assertEquals(emptyId, index.find(empty));
+		assertEquals(invertedId, index.find(inverted));
+
+		index.remove(index.find(empty));
+		index.remove(index.find(inverted));
+		assertEquals(-1, index.find(empty));
+		assertEquals(-1, index.find(inverted));
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.PointF;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that converting packed points through GridTransform gives the same results as converting each point
+ * individually, both when the mapping can be represented by a matrix and when it cannot.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GridTransformTest {
+
+	private static final float TOLERANCE = 0.5f; // the same as GridTransform's own fit check
+
+	/**
+	 * A perspective mapping, as for a photo of the page taken at an angle, which a matrix can represent exactly
+	 */
+	private static class PerspectiveMapper implements GridTransform.PointMapper {
+		// x' = (ax + by + c) / (gx + hy + i) and y' = (dx + ey + f) / (gx + hy + i), in the order a to i
+		private final float[] mForward = { 0.9f, 0.1f, 50, -0.05f, 1.1f, 30, 0.00001f, 0.00002f, 1 };
+		private final float[] mInverse = invert(mForward);
+
+		@Override
+		public PointF gridToImage(PointF gridPoint) {
+			return map(mForward, gridPoint);
+		}
+
+		@Override
+		public PointF imageToGrid(PointF imagePoint) {
+			return map(mInverse, imagePoint);
+		}
+
+		private static PointF map(float[] m, PointF point) {
+			final float w = m[6] * point.x + m[7] * point.y + m[8];
+			return new PointF((m[0] * point.x + m[1] * point.y + m[2]) / w, (m[3] * point.x + m[4] * point.y + m[5])
+					/ w);
+		}
+
+		private static float[] invert(float[] m) {
+			// the adjugate is enough, as the inverse's overall scale cancels out when mapping
+			return new float[]{
+					m[4] * m[8] - m[5] * m[7], m[2] * m[7] - m[1] * m[8], m[1] * m[5] - m[2] * m[4],
+					m[5] * m[6] - m[3] * m[8], m[0] * m[8] - m[2] * m[6], m[2] * m[3] - m[0] * m[5],
+					m[3] * m[7] - m[4] * m[6], m[1] * m[6] - m[0] * m[7], m[0] * m[4] - m[1] * m[3]
+			};
+		}
+	}
+
+	/**
+	 * A curved mapping (e.g., a page that is not lying flat), which a matrix cannot represent
+	 */
+	private static class CurvedMapper implements GridTransform.PointMapper {
+		private static final float CURVATURE = 0.0002f;
+
+		@Override
+		public PointF gridToImage(PointF gridPoint) {
+			return new PointF(gridPoint.x + CURVATURE * gridPoint.y * gridPoint.y, gridPoint.y);
+		}
+
+		@Override
+		public PointF imageToGrid(PointF imagePoint) {
+			return new PointF(imagePoint.x - CURVATURE * imagePoint.y * imagePoint.y, imagePoint.y);
+		}
+	}
+
+	@Test
+	public void perspectiveMappingUsesMatrix() {
+		assertTrue(new GridTransform(new PerspectiveMapper()).isUsingMatrix());
+	}
+
+	@Test
+	public void perspectiveGridToImageMatchesPerPointConversion() {
+		PerspectiveMapper mapper = new PerspectiveMapper();
+		float[] points = createGridPoints();
+		float[] expected = mapEachPoint(points, mapper, true);
+
+		new GridTransform(mapper).gridToImage(points);
+		assertPointsEqual(expected, points, TOLERANCE);
+	}
+
+	@Test
+	public void perspectiveImageToGridMatchesPerPointConversion() {
+		PerspectiveMapper mapper = new PerspectiveMapper();
+		float[] points = mapEachPoint(createGridPoints(), mapper, true);
+		float[] expected = mapEachPoint(points, mapper, false);
+
+		new GridTransform(mapper).imageToGrid(points);
+		assertPointsEqual(expected, points, TOLERANCE);
+	}
+
+	@Test
+	public void perspectiveRoundTripReturnsOriginalPoints() {
+		GridTransform transform = new GridTransform(new PerspectiveMapper());
+		float[] expected = createGridPoints();
+		float[] points = expected.clone();
+
+		transform.gridToImage(points);
+		transform.imageToGrid(points);
+		assertPointsEqual(expected, points, TOLERANCE);
+	}
+
+	@Test
+	public void curvedMappingFallsBackToPerPointConversion() {
+		CurvedMapper mapper = new CurvedMapper();
+		GridTransform transform = new GridTransform(mapper);
+		assertFalse(transform.isUsingMatrix());
+
+		float[] points = createGridPoints();
+		float[] expected = mapEachPoint(points, mapper, true);
+		transform.gridToImage(points);
+		assertPointsEqual(expected, points, 0);
+
+		expected = mapEachPoint(points, mapper, false);
+		transform.imageToGrid(points);
+		assertPointsEqual(expected, points, 0);
+	}
+
+	/**
+	 * @return packed x, y pairs covering the page's grid, and a little beyond it on each side
+	 */
+	private static float[] createGridPoints() {
+		final int steps = 13; // -100 to 1100 in steps of 100
+		float[] points = new float[steps * steps * 2];
+		int i = 0;
+		for (int row = 0; row < steps; row++) {
+			for (int column = 0; column < steps; column++) {
+				points[i++] = column * 100 - 100;
+				points[i++] = row * 100 - 100;
+			}
+		}
+		return points;
+	}
+
+	private static float[] mapEachPoint(float[] points, GridTransform.PointMapper mapper, boolean gridToImage) {
+		float[] mapped = new float[points.length];
+		for (int i = 0; i + 1 < points.length; i += 2) {
+			PointF point = new PointF(points[i], points[i + 1]);
+			PointF result = gridToImage ? mapper.gridToImage(point) : mapper.imageToGrid(point);
+			mapped[i] = result.x;
+			mapped[i + 1] = result.y;
+		}
+		return mapped;
+	}
+
+	private static void assertPointsEqual(float[] expected, float[] actual, float tolerance) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("point " + (i / 2) + (i % 2 == 0 ? " x" : " y"), expected[i], actual[i], tolerance);
+		}
+	}
+}
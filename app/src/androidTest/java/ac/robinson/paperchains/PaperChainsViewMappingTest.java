@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.graphics.PointF;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.sonyericsson.zoom.LongPressZoomListener;
+import com.sonyericsson.zoom.ZoomState;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that PaperChainsView's coordinate mapping methods (and LongPressZoomListener's touch point) are consistent
+ * with each other, and do not allocate, as they are called for every touch.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PaperChainsViewMappingTest {
+
+	private static final int VIEW_WIDTH = 800;
+	private static final int VIEW_HEIGHT = 600;
+	private static final int IMAGE_WIDTH = 400;
+	private static final int IMAGE_HEIGHT = 300;
+	private static final float PAN_X = 0.4f;
+	private static final float PAN_Y = 0.6f;
+	private static final float ZOOM = 2; // zoomed in enough that the visible area is not limited by the image's edges
+
+	private static final int ITERATIONS = 1000;
+
+	private PaperChainsView mView;
+	private LongPressZoomListener mZoomListener;
+
+	@Before
+	public void setUp() {
+		// views (and the zoom listener's gesture detector) must be created and drawn on the UI thread
+		InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mView = new PaperChainsView(InstrumentationRegistry.getTargetContext(), null);
+				mView.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+
+				ZoomState zoomState = new ZoomState();
+				zoomState.setPanX(PAN_X);
+				zoomState.setPanY(PAN_Y);
+				zoomState.setZoom(ZOOM);
+				mView.setZoomState(zoomState);
+				mView.setImage(Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.RGB_565));
+
+				// drawing calculates the transform that the mapping methods use
+				mView.draw(new Canvas(Bitmap.createBitmap(VIEW_WIDTH, VIEW_HEIGHT, Bitmap.Config.ARGB_8888)));
+
+				mZoomListener = new LongPressZoomListener(InstrumentationRegistry.getTargetContext());
+			}
+		});
+	}
+
+	@Test
+	public void panPositionIsAtViewCentre() {
+		PointF screenPoint = new PointF();
+		mView.imagePointToScreenPoint(PAN_X * IMAGE_WIDTH, PAN_Y * IMAGE_HEIGHT, screenPoint);
+		assertEquals(VIEW_WIDTH / 2f, screenPoint.x, ZOOM); // the visible area is rounded to whole image pixels
+		assertEquals(VIEW_HEIGHT / 2f, screenPoint.y, ZOOM);
+	}
+
+	@Test
+	public void packedMappingMatchesSinglePointMapping() {
+		float[] imagePoints = createPoints(IMAGE_WIDTH, IMAGE_HEIGHT);
+		float[] screenPoints = imagePoints.clone();
+		mView.imagePointsToScreenPoints(screenPoints);
+
+		PointF screenPoint = new PointF();
+		for (int i = 0; i < imagePoints.length; i += 2) {
+			mView.imagePointToScreenPoint(imagePoints[i], imagePoints[i + 1], screenPoint);
+			assertEquals(screenPoint.x, screenPoints[i], 0);
+			assertEquals(screenPoint.y, screenPoints[i + 1], 0);
+		}
+
+		float[] touchPoints = createPoints(VIEW_WIDTH, VIEW_HEIGHT);
+		float[] mappedTouchPoints = touchPoints.clone();
+		mView.screenPointsToImagePoints(mappedTouchPoints);
+
+		PointF touchPoint = new PointF();
+		Point imagePoint = new Point();
+		for (int i = 0; i < touchPoints.length; i += 2) {
+			touchPoint.set(touchPoints[i], touchPoints[i + 1]);
+			mView.screenPointToImagePoint(touchPoint, imagePoint);
+			assertEquals((int) mappedTouchPoints[i], imagePoint.x);
+			assertEquals((int) mappedTouchPoints[i + 1], imagePoint.y);
+		}
+	}
+
+	@Test
+	public void screenToImageReversesImageToScreen() {
+		float[] expected = createPoints(IMAGE_WIDTH, IMAGE_HEIGHT);
+		float[] points = expected.clone();
+		mView.imagePointsToScreenPoints(points);
+		mView.screenPointsToImagePoints(points);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], points[i], 0.01f);
+		}
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void mappingDoesNotAllocate() {
+		final PointF touchPoint = new PointF();
+		final Point imagePoint = new Point();
+		final float[] points = createPoints(IMAGE_WIDTH, IMAGE_HEIGHT);
+		mapTouches(touchPoint, imagePoint, points); // warm up first, so that only steady state behaviour is counted
+
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			mapTouches(touchPoint, imagePoint, points);
+			assertEquals(0, Debug.getThreadAllocCount());
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+
+	/**
+	 * Maps points in the same way as PaperChainsActivity does when handling touches
+	 */
+	private void mapTouches(PointF touchPoint, Point imagePoint, float[] points) {
+		for (int i = 0; i < ITERATIONS; i++) {
+			mZoomListener.getLastTouchPoint(touchPoint);
+			mView.screenPointToImagePoint(touchPoint, imagePoint);
+			mView.imagePointToScreenPoint(imagePoint.x, imagePoint.y, touchPoint);
+			mView.imagePointsToScreenPoints(points);
+			mView.screenPointsToImagePoints(points);
+		}
+	}
+
+	/**
+	 * @return packed x, y pairs spread across an area of the given size
+	 */
+	private static float[] createPoints(int width, int height) {
+		final int steps = 5;
+		float[] points = new float[steps * steps * 2];
+		int i = 0;
+		for (int row = 0; row < steps; row++) {
+			for (int column = 0; column < steps; column++) {
+				points[i++] = column * width / (float) (steps - 1);
+				points[i++] = row * height / (float) (steps - 1);
+			}
+		}
+		return points;
+	}
+}
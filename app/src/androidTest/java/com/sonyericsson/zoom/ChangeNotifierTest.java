@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sonyericsson.zoom;
+
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that ChangeNotifier coalesces changes into a single notification, and that notifying does not allocate
+ */
+@RunWith(AndroidJUnit4.class)
+public class ChangeNotifierTest {
+
+	/**
+	 * Number of notifications to count allocations over
+	 */
+	private static final int ITERATIONS = 1000;
+
+	/**
+	 * Listener that records the notifications it receives
+	 */
+	private static class CountingListener implements ChangeNotifier.ChangeListener {
+		/**
+		 * Number of notifications received
+		 */
+		int mCount;
+
+		/**
+		 * Changes reported by the most recent notification
+		 */
+		int mChanges;
+
+		@Override
+		public void onChanged(ChangeNotifier notifier, int changes) {
+			mCount++;
+			mChanges = changes;
+		}
+	}
+
+	@Test
+	public void changesAreCoalescedIntoOneNotification() {
+		ZoomState zoomState = new ZoomState();
+		CountingListener listener = new CountingListener();
+		zoomState.addListener(listener);
+
+		zoomState.setPanX(0.25f);
+		zoomState.setPanY(0.75f);
+		zoomState.setZoom(2);
+		zoomState.notifyListeners();
+		assertEquals(1, listener.mCount);
+		assertEquals(ZoomState.CHANGED_PAN_X | ZoomState.CHANGED_PAN_Y | ZoomState.CHANGED_ZOOM, listener.mChanges);
+
+		zoomState.notifyListeners(); // nothing has changed since
+		zoomState.setZoom(2); // the same value, so not a change
+		zoomState.notifyListeners();
+		assertEquals(1, listener.mCount);
+	}
+
+	@Test
+	public void listenersAreAddedOnceAndRemoved() {
+		ZoomState zoomState = new ZoomState();
+		CountingListener listener = new CountingListener();
+		zoomState.addListener(listener);
+		zoomState.addListener(listener);
+
+		zoomState.setZoom(2);
+		zoomState.notifyListeners();
+		assertEquals(1, listener.mCount);
+
+		zoomState.removeListener(listener);
+		zoomState.setZoom(3);
+		zoomState.notifyListeners();
+		assertEquals(1, listener.mCount);
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void notifyingListenersDoesNotAllocate() {
+		ZoomState zoomState = new ZoomState();
+		CountingListener firstListener = new CountingListener();
+		CountingListener secondListener = new CountingListener();
+		zoomState.addListener(firstListener);
+		zoomState.addListener(secondListener);
+		changeAndNotify(zoomState, ITERATIONS); // warm up first, so that only steady state behaviour is counted
+		final int firstCount = firstListener.mCount;
+		final int secondCount = secondListener.mCount;
+
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			changeAndNotify(zoomState, ITERATIONS);
+			assertEquals(0, Debug.getThreadAllocCount());
+		} finally {
+			Debug.stopAllocCounting();
+		}
+		assertEquals(firstCount + ITERATIONS, firstListener.mCount); // every iteration changed the state
+		assertEquals(secondCount + ITERATIONS, secondListener.mCount);
+	}
+
+	/**
+	 * Makes a pan and zoom change, as in a single frame of a fling, then notifies listeners
+	 */
+	private static void changeAndNotify(ZoomState zoomState, int iterations) {
+		for (int i = 0; i < iterations; i++) {
+			zoomState.setPanX(i / (float) iterations);
+			zoomState.setPanY(i / (float) iterations);
+			zoomState.setZoom(1 + i / (float) iterations);
+			zoomState.notifyListeners();
+		}
+	}
+}
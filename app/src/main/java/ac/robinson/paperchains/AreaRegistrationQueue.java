@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.loopj.android.http.AsyncHttpClient;
+import com.loopj.android.http.RequestParams;
+import com.loopj.android.http.TextHttpResponseHandler;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import cz.msebera.android.httpclient.Header;
+
+/**
+ * Queue of new audio areas waiting to be registered with the code server. Pending registrations are saved to disk so
+ * they survive process death, and are sent together whenever the queue is drained, sharing a small pool of
+ * connections. If any fail to send, the queue is retried with exponential backoff. Must only be used from the UI
+ * thread.
+ */
+class AreaRegistrationQueue {
+
+	private static final String QUEUE_FILE = "pending_registrations.json";
+
+	private static final int MAX_CONNECTIONS = 2;
+	private static final long INITIAL_RETRY_DELAY = 2000; // ms
+	private static final long MAX_RETRY_DELAY = 5 * 60 * 1000; // ms
+
+	private static AreaRegistrationQueue sInstance;
+
+	public static class Registration {
+		public final String pageId;
+		public final long soundCloudId;
+		public final int left;
+		public final int top;
+		public final int right;
+		public final int bottom;
+
+		public Registration(String pageId, long soundCloudId, int left, int top, int right, int bottom) {
+			this.pageId = pageId;
+			this.soundCloudId = soundCloudId;
+			this.left = left;
+			this.top = top;
+			this.right = right;
+			this.bottom = bottom;
+		}
+
+		private RequestParams toRequestParams() {
+			RequestParams params = new RequestParams("newaudio", 1); // 1 reserved for possible future use as box ID
+			params.put("left", left);
+			params.put("top", top);
+			params.put("right", right);
+			params.put("bottom", bottom);
+			params.put("soundCloudId", soundCloudId);
+			params.put("pageId", pageId);
+			return params;
+		}
+
+		private JSONObject toJSON() throws JSONException {
+			JSONObject json = new JSONObject();
+			json.put("pageId", pageId);
+			json.put("soundCloudId", soundCloudId);
+			json.put("left", left);
+			json.put("top", top);
+			json.put("right", right);
+			json.put("bottom", bottom);
+			return json;
+		}
+
+		private static Registration fromJSON(JSONObject json) throws JSONException {
+			return new Registration(json.getString("pageId"), json.getLong("soundCloudId"), json.getInt("left"), json
+					.getInt("top"), json.getInt("right"), json.getInt("bottom"));
+		}
+	}
+
+	public interface RegistrationListener {
+		/**
+		 * Called when the server has rejected a registration. Registrations that fail due to connection errors are
+		 * retried rather than reported.
+		 */
+		void registrationRejected(Registration registration);
+	}
+
+	private final File mQueueFile;
+	private final ArrayList<Registration> mPending = new ArrayList<>();
+
+	private final AsyncHttpClient mClient = new AsyncHttpClient();
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private RegistrationListener mListener;
+
+	private boolean mDraining;
+	private int mRequestsRemaining;
+	private boolean mRetryNeeded;
+	private long mRetryDelay = INITIAL_RETRY_DELAY;
+
+	private final Runnable mDrainRunnable = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Gets the queue, creating it (and resuming any registrations pending from a previous session) if necessary
+	 */
+	public static AreaRegistrationQueue getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new AreaRegistrationQueue(context.getApplicationContext());
+			sInstance.drain();
+		}
+		return sInstance;
+	}
+
+	private AreaRegistrationQueue(Context context) {
+		mQueueFile = new File(context.getFilesDir(), QUEUE_FILE);
+		mClient.setMaxConnections(MAX_CONNECTIONS);
+		load();
+	}
+
+	public void setRegistrationListener(RegistrationListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Queues a registration and sends it as soon as possible
+	 */
+	public void add(Registration registration) {
+		mPending.add(registration);
+		save();
+		if (!mDraining) {
+			// send now rather than waiting for any scheduled retry
+			mHandler.removeCallbacks(mDrainRunnable);
+			mRetryDelay = INITIAL_RETRY_DELAY;
+			drain();
+		}
+	}
+
+	/**
+	 * @return the number of registrations that have not yet been accepted by the server
+	 */
+	public int getPendingCount() {
+		return mPending.size();
+	}
+
+	private void drain() {
+		if (mDraining || mPending.isEmpty()) {
+			return;
+		}
+		mDraining = true;
+		mRetryNeeded = false;
+
+		// the server accepts one area per request, so we send the whole batch at once over our pooled connections
+		ArrayList<Registration> batch = new ArrayList<>(mPending);
+		mRequestsRemaining = batch.size();
+		for (Registration registration : batch) {
+			mClient.get(PaperChainsActivity.CODE_SERVER_URL, registration.toRequestParams(), new
+					RegistrationResponseHandler(registration));
+		}
+	}
+
+	/**
+	 * Handles the response to a single registration. We parse the body ourselves rather than using a JSON handler so
+	 * that every response (including empty or non-JSON bodies, e.g., proxy error pages) reaches one of these two
+	 * callbacks, and the request is always counted as finished exactly once.
+	 */
+	private class RegistrationResponseHandler extends TextHttpResponseHandler {
+		private final Registration mRegistration;
+		private boolean mFinished;
+
+		public RegistrationResponseHandler(Registration registration) {
+			mRegistration = registration;
+		}
+
+		@Override
+		public void onSuccess(int statusCode, Header[] headers, String responseString) {
+			try {
+				JSONObject response = new JSONObject(responseString != null ? responseString : "");
+				mPending.remove(mRegistration);
+				if (!"ok".equals(response.optString("status")) && mListener != null) {
+					mListener.registrationRejected(mRegistration);
+				}
+			} catch (JSONException e) {
+				mRetryNeeded = true; // unexpected response - leave the registration queued and try again later
+			}
+			finish();
+		}
+
+		@Override
+		public void onFailure(int statusCode, Header[] headers, String responseString, Throwable throwable) {
+			mRetryNeeded = true;
+			finish();
+		}
+
+		private void finish() {
+			if (!mFinished) {
+				mFinished = true;
+				requestFinished();
+			}
+		}
+	}
+
+	private void requestFinished() {
+		mRequestsRemaining--;
+		if (mRequestsRemaining > 0) {
+			return;
+		}
+
+		save();
+		mDraining = false;
+		if (mRetryNeeded) {
+			mHandler.postDelayed(mDrainRunnable, mRetryDelay);
+			mRetryDelay = Math.min(mRetryDelay * 2, MAX_RETRY_DELAY);
+		} else {
+			mRetryDelay = INITIAL_RETRY_DELAY;
+			drain(); // in case more were added while we were sending
+		}
+	}
+
+	private void load() {
+		JSONArray registrations = JsonQueueFile.read(mQueueFile);
+		for (int i = 0; i < registrations.length(); i++) {
+			try {
+				mPending.add(Registration.fromJSON(registrations.getJSONObject(i)));
+			} catch (JSONException ignored) {
+				// skip invalid entries
+			}
+		}
+	}
+
+	private void save() {
+		JSONArray registrations = new JSONArray();
+		for (Registration registration : mPending) {
+			try {
+				registrations.put(registration.toJSON());
+			} catch (JSONException ignored) {
+			}
+		}
+		JsonQueueFile.write(mQueueFile, registrations);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.Rect;
+
+/**
+ * A view onto a single area in an {@link AudioAreaStore}. Holders hold no area data themselves, so a single instance
+ * can be repositioned with {@link #moveTo(AudioAreaStore, int)} rather than allocating one per area.
+ */
+class AudioAreaHolder {
+
+	private AudioAreaStore mStore;
+	private int mIndex;
+
+	public AudioAreaHolder moveTo(AudioAreaStore store, int index) {
+		mStore = store;
+		mIndex = index;
+		return this;
+	}
+
+	public int getIndex() {
+		return mIndex;
+	}
+
+	public long getSoundCloudId() {
+		return mStore.getSoundCloudId(mIndex);
+	}
+
+	public void getServerRect(Rect out) {
+		mStore.getServerRect(mIndex, out);
+	}
+
+	public void getImageRect(Rect out) {
+		mStore.getImageRect(mIndex, out);
+	}
+
+	public void setImageRect(Rect imageRect) {
+		mStore.setImageRect(mIndex, imageRect);
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.Rect;
+import android.util.SparseArray;
+
+/**
+ * A uniform grid spatial index over audio area rectangles (in image coordinates). Entries are identified by the id
+ * returned from {@link #add(Rect)}. The ids of removed entries are reused; otherwise, ids increase by one for each
+ * added rect, starting from 0 after a clear (so if entries are never removed, ids can match indices in another list).
+ * <p/>
+ * Queries write their results to a buffer that is reused between calls, so the index should only be accessed from a
+ * single (i.e., the UI) thread, and results must be read before the next query.
+ */
+class AudioAreaIndex {
+
+	private static final int DEFAULT_CELL_SIZE = 256; // in image pixels
+	private static final int MAX_CELL_COORDINATE = Short.MAX_VALUE;
+
+	private final int mCellSize;
+
+	// rects are stored packed as left, top, right, bottom; removed entries are emptied and their ids reused
+	private int[] mRects = new int[64];
+	private int mSize;
+	private boolean[] mRemoved = new boolean[16];
+	private int[] mFreeIds = new int[16];
+	private int mFreeCount;
+
+	// each cell holds its entry count, followed by the ids of the entries that overlap it
+	private final SparseArray<int[]> mCells = new SparseArray<>();
+
+	// used to avoid returning the same entry more than once when it covers several cells
+	private int[] mQueryStamps = new int[16];
+	private int mQueryStamp;
+
+	private int[] mResults = new int[16];
+	private int mResultCount;
+
+	public AudioAreaIndex() {
+		this(DEFAULT_CELL_SIZE);
+	}
+
+	public AudioAreaIndex(int cellSize) {
+		mCellSize = cellSize;
+	}
+
+	/**
+	 * Adds a rect to the index
+	 *
+	 * @param rect the rect to add (its values are copied)
+	 * @return the id of the new entry
+	 */
+	public int add(Rect rect) {
+		final int id;
+		if (mFreeCount > 0) {
+			id = mFreeIds[--mFreeCount];
+		} else {
+			id = mSize;
+			if ((id + 1) * 4 > mRects.length) {
+				mRects = grow(mRects, (id + 1) * 4);
+			}
+			if (id >= mQueryStamps.length) {
+				mQueryStamps = grow(mQueryStamps, id + 1);
+			}
+			if (id >= mRemoved.length) {
+				boolean[] removed = new boolean[Math.max(id + 1, mRemoved.length * 2)];
+				System.arraycopy(mRemoved, 0, removed, 0, mRemoved.length);
+				mRemoved = removed;
+			}
+			mSize++;
+		}
+		mRemoved[id] = false; // may have been removed before the index was last cleared
+		mRects[id * 4] = rect.left;
+		mRects[id * 4 + 1] = rect.top;
+		mRects[id * 4 + 2] = rect.right;
+		mRects[id * 4 + 3] = rect.bottom;
+		mQueryStamps[id] = 0;
+
+		final int minCellX = getCell(rect.left);
+		final int maxCellX = getCell(rect.right);
+		final int minCellY = getCell(rect.top);
+		final int maxCellY = getCell(rect.bottom);
+		for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+			for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+				final int key = getCellKey(cellX, cellY);
+				int[] cell = mCells.get(key);
+				if (cell == null) {
+					cell = new int[4];
+				} else if (cell[0] + 1 >= cell.length) {
+					cell = grow(cell, cell[0] + 2);
+				}
+				cell[++cell[0]] = id;
+				mCells.put(key, cell);
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Removes an entry from the index. Ids of other entries are not affected, but this id may be reused by the next
+	 * entry added.
+	 *
+	 * @param id the id of the entry to remove
+	 */
+	public void remove(int id) {
+		if (id < 0 || id >= mSize || mRemoved[id]) {
+			return;
+		}
+
+		final int minCellX = getCell(mRects[id * 4]);
+		final int maxCellX = getCell(mRects[id * 4 + 2]);
+		final int minCellY = getCell(mRects[id * 4 + 1]);
+		final int maxCellY = getCell(mRects[id * 4 + 3]);
+		for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+			for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+				int[] cell = mCells.get(getCellKey(cellX, cellY));
+				if (cell != null) {
+					for (int i = 1; i <= cell[0]; i++) {
+						if (cell[i] == id) {
+							cell[i] = cell[cell[0]]; // order within a cell is not important
+							cell[0]--;
+							break;
+						}
+					}
+				}
+			}
+		}
+		mRects[id * 4] = mRects[id * 4 + 1] = mRects[id * 4 + 2] = mRects[id * 4 + 3] = 0;
+
+		mRemoved[id] = true;
+		if (mFreeCount >= mFreeIds.length) {
+			mFreeIds = grow(mFreeIds, mFreeCount + 1);
+		}
+		mFreeIds[mFreeCount++] = id;
+	}
+
+	/**
+	 * Removes all entries from the index, resetting ids so that the next entry added has id 0
+	 */
+	public void clear() {
+		mCells.clear();
+		mSize = 0;
+		mFreeCount = 0;
+		mResultCount = 0;
+	}
+
+	/**
+	 * @return the number of ids that have been allocated since the index was last cleared (including removed entries
+	 * whose ids have not yet been reused) - all ids are less than this value
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Gets the rect of the given entry
+	 *
+	 * @param id  the id of the entry
+	 * @param out the rect to write the entry's values to
+	 */
+	public void getRect(int id, Rect out) {
+		out.set(mRects[id * 4], mRects[id * 4 + 1], mRects[id * 4 + 2], mRects[id * 4 + 3]);
+	}
+
+	/**
+	 * Finds the first entry with exactly the same bounds as the given rect (which may be empty). Does not affect the
+	 * results of the most recent query.
+	 *
+	 * @param rect the rect to find
+	 * @return the id of the matching entry, or -1 if there is no match
+	 */
+	public int find(Rect rect) {
+		if (rect.left > rect.right || rect.top > rect.bottom) {
+			// inverted rects are not in any cell, so we have to check every entry (rare, as they're usually an error)
+			for (int id = 0; id < mSize; id++) {
+				if (!mRemoved[id] && hasBounds(id, rect)) {
+					return id;
+				}
+			}
+			return -1;
+		}
+
+		// any other entry (including empty ones) is in the cell containing its top left corner
+		final int[] cell = mCells.get(getCellKey(getCell(rect.left), getCell(rect.top)));
+		if (cell != null) {
+			for (int i = 1; i <= cell[0]; i++) {
+				if (hasBounds(cell[i], rect)) {
+					return cell[i];
+				}
+			}
+		}
+		return -1;
+	}
+
+	private boolean hasBounds(int id, Rect rect) {
+		final int base = id * 4;
+		return mRects[base] == rect.left && mRects[base + 1] == rect.top && mRects[base + 2] == rect.right &&
+				mRects[base + 3] == rect.bottom;
+	}
+
+	/**
+	 * Finds all entries containing the given point, ordered from the smallest to the largest area. Retrieve the
+	 * results via {@link #getResult(int)}.
+	 *
+	 * @param x the x coordinate of the point
+	 * @param y the y coordinate of the point
+	 * @return the number of entries found
+	 */
+	public int findPoint(int x, int y) {
+		mResultCount = 0;
+		final int[] cell = mCells.get(getCellKey(getCell(x), getCell(y)));
+		if (cell == null) {
+			return 0;
+		}
+
+		for (int i = 1; i <= cell[0]; i++) {
+			final int id = cell[i];
+			final int base = id * 4;
+			// same semantics as Rect.contains (i.e., empty rects never contain a point)
+			if (mRects[base] < mRects[base + 2] && mRects[base + 1] < mRects[base + 3] && x >= mRects[base] && x <
+					mRects[base + 2] && y >= mRects[base + 1] && y < mRects[base + 3]) {
+				addResult(id);
+			}
+		}
+
+		// insertion sort by area - there are very rarely more than a few overlapping entries
+		for (int i = 1; i < mResultCount; i++) {
+			final int id = mResults[i];
+			final long area = getArea(id);
+			int j = i - 1;
+			while (j >= 0 && getArea(mResults[j]) > area) {
+				mResults[j + 1] = mResults[j];
+				j--;
+			}
+			mResults[j + 1] = id;
+		}
+		return mResultCount;
+	}
+
+	/**
+	 * Finds all entries that intersect the given rect, in no particular order. Retrieve the results via
+	 * {@link #getResult(int)}.
+	 *
+	 * @param rect the rect to test against
+	 * @return the number of entries found
+	 */
+	public int findIntersecting(Rect rect) {
+		mResultCount = 0;
+		mQueryStamp++;
+		if (mQueryStamp == Integer.MAX_VALUE) {
+			mQueryStamp = 1;
+			for (int i = 0; i < mSize; i++) {
+				mQueryStamps[i] = 0;
+			}
+		}
+
+		final int minCellX = getCell(rect.left);
+		final int maxCellX = getCell(rect.right);
+		final int minCellY = getCell(rect.top);
+		final int maxCellY = getCell(rect.bottom);
+		for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+			for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+				final int[] cell = mCells.get(getCellKey(cellX, cellY));
+				if (cell == null) {
+					continue;
+				}
+				for (int i = 1; i <= cell[0]; i++) {
+					final int id = cell[i];
+					if (mQueryStamps[id] == mQueryStamp) {
+						continue;
+					}
+					mQueryStamps[id] = mQueryStamp;
+					final int base = id * 4;
+					// same semantics as Rect.intersects
+					if (mRects[base] < rect.right && rect.left < mRects[base + 2] && mRects[base + 1] < rect.bottom &&
+							rect.top < mRects[base + 3]) {
+						addResult(id);
+					}
+				}
+			}
+		}
+		return mResultCount;
+	}
+
+	/**
+	 * @param i the index of the result to get, from 0 to the count returned by the most recent query
+	 * @return the id of the entry at this position in the most recent query's results
+	 */
+	public int getResult(int i) {
+		return mResults[i];
+	}
+
+	private void addResult(int id) {
+		if (mResultCount >= mResults.length) {
+			mResults = grow(mResults, mResultCount + 1);
+		}
+		mResults[mResultCount++] = id;
+	}
+
+	private long getArea(int id) {
+		final int base = id * 4;
+		return (long) (mRects[base + 2] - mRects[base]) * (mRects[base + 3] - mRects[base + 1]);
+	}
+
+	private int getCell(int coordinate) {
+		// floor division, so that negative coordinates map to their own cells
+		int cell = coordinate >= 0 ? coordinate / mCellSize : -((-coordinate - 1) / mCellSize) - 1;
+		return Math.max(-MAX_CELL_COORDINATE, Math.min(MAX_CELL_COORDINATE, cell));
+	}
+
+	private static int getCellKey(int cellX, int cellY) {
+		return (cellY << 16) | (cellX & 0xffff);
+	}
+
+	private static int[] grow(int[] array, int minLength) {
+		int[] newArray = new int[Math.max(minLength, array.length * 2)];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+}
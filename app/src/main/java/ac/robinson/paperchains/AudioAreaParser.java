@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Decodes code server lookup responses straight into an {@link AudioAreaStore}. Uses a streaming parser where
+ * available (API 11+), so no intermediate JSON tree is built. Parsing can be slow for large pages, so this should not
+ * be called from the UI thread.
+ */
+class AudioAreaParser {
+
+	private static final int FIELD_SOUNDCLOUD_ID = 1;
+	private static final int FIELD_LEFT = 1 << 1;
+	private static final int FIELD_TOP = 1 << 2;
+	private static final int FIELD_RIGHT = 1 << 3;
+	private static final int FIELD_BOTTOM = 1 << 4;
+	private static final int FIELDS_ALL = FIELD_SOUNDCLOUD_ID | FIELD_LEFT | FIELD_TOP | FIELD_RIGHT | FIELD_BOTTOM;
+
+	/**
+	 * Parses a lookup response
+	 *
+	 * @param response the raw response body
+	 * @return the page's audio areas, or null if the server did not report success
+	 * @throws IOException if the response is malformed
+	 */
+	public static AudioAreaStore parse(String response) throws IOException {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			try {
+				return parseStreaming(response);
+			} catch (IllegalStateException | NumberFormatException e) {
+				throw new IOException("Unexpected value in lookup response: " + e.getMessage());
+			}
+		}
+		try {
+			return parseTree(response);
+		} catch (JSONException e) {
+			throw new IOException("Unable to parse lookup response: " + e.getMessage());
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static AudioAreaStore parseStreaming(String response) throws IOException {
+		JsonReader reader = new JsonReader(new StringReader(response));
+		//noinspection TryFinallyCanBeTryWithResources
+		try {
+			String status = null;
+			AudioAreaStore audioAreas = new AudioAreaStore();
+
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("status".equals(name) && reader.peek() == JsonToken.STRING) {
+					status = reader.nextString();
+				} else if ("audioAreas".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						if (reader.peek() == JsonToken.NULL) {
+							reader.nextNull(); // pages without audio are returned as [null]
+							continue;
+						}
+
+						long soundCloudId = 0;
+						int left = 0, top = 0, right = 0, bottom = 0;
+						int fields = 0;
+						reader.beginObject();
+						while (reader.hasNext()) {
+							String field = reader.nextName();
+							if ("soundCloudId".equals(field)) {
+								soundCloudId = reader.nextLong();
+								fields |= FIELD_SOUNDCLOUD_ID;
+							} else if ("left".equals(field)) {
+								left = reader.nextInt();
+								fields |= FIELD_LEFT;
+							} else if ("top".equals(field)) {
+								top = reader.nextInt();
+								fields |= FIELD_TOP;
+							} else if ("right".equals(field)) {
+								right = reader.nextInt();
+								fields |= FIELD_RIGHT;
+							} else if ("bottom".equals(field)) {
+								bottom = reader.nextInt();
+								fields |= FIELD_BOTTOM;
+							} else {
+								reader.skipValue();
+							}
+						}
+						reader.endObject();
+
+						if (fields != FIELDS_ALL) {
+							throw new IOException("Incomplete audio area in lookup response");
+						}
+						audioAreas.add(soundCloudId, left, top, right, bottom);
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+
+			return "ok".equals(status) ? audioAreas : null;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static AudioAreaStore parseTree(String response) throws JSONException {
+		JSONObject responseObject = new JSONObject(response);
+		if (!"ok".equals(responseObject.getString("status"))) {
+			return null;
+		}
+
+		JSONArray areas = responseObject.getJSONArray("audioAreas");
+		AudioAreaStore audioAreas = new AudioAreaStore(areas.length());
+		if (!areas.isNull(0)) {
+			for (int i = 0; i < areas.length(); i++) {
+				JSONObject jsonBox = areas.getJSONObject(i);
+				audioAreas.add(jsonBox.getLong("soundCloudId"), jsonBox.getInt("left"), jsonBox.getInt("top"),
+						jsonBox.getInt("right"), jsonBox.getInt("bottom"));
+			}
+		}
+		return audioAreas;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.Rect;
+
+/**
+ * Packed storage for a page's audio areas. Rather than allocating an object (and Rects) per area, ids and coordinates
+ * are held in primitive arrays, and {@link AudioAreaHolder} provides a view onto individual areas.
+ */
+class AudioAreaStore {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] mSoundCloudIds;
+	private int[] mServerRects; // packed left, top, right, bottom in grid coordinates
+	private int[] mImageRects; // packed left, top, right, bottom in image coordinates
+	private int mSize;
+
+	public AudioAreaStore() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public AudioAreaStore(int capacity) {
+		capacity = Math.max(1, capacity);
+		mSoundCloudIds = new long[capacity];
+		mServerRects = new int[capacity * 4];
+		mImageRects = new int[capacity * 4];
+	}
+
+	/**
+	 * Creates an independent copy of another store, with just enough capacity for its areas
+	 */
+	public AudioAreaStore(AudioAreaStore other) {
+		this(other.mSize);
+		System.arraycopy(other.mSoundCloudIds, 0, mSoundCloudIds, 0, other.mSize);
+		System.arraycopy(other.mServerRects, 0, mServerRects, 0, other.mSize * 4);
+		System.arraycopy(other.mImageRects, 0, mImageRects, 0, other.mSize * 4);
+		mSize = other.mSize;
+	}
+
+	/**
+	 * Adds an area to the store. Its image rect is initially empty.
+	 *
+	 * @return the index of the new area
+	 */
+	public int add(long soundCloudId, int left, int top, int right, int bottom) {
+		if (mSize >= mSoundCloudIds.length) {
+			final int capacity = mSoundCloudIds.length * 2;
+			long[] soundCloudIds = new long[capacity];
+			System.arraycopy(mSoundCloudIds, 0, soundCloudIds, 0, mSize);
+			mSoundCloudIds = soundCloudIds;
+			int[] serverRects = new int[capacity * 4];
+			System.arraycopy(mServerRects, 0, serverRects, 0, mSize * 4);
+			mServerRects = serverRects;
+			int[] imageRects = new int[capacity * 4];
+			System.arraycopy(mImageRects, 0, imageRects, 0, mSize * 4);
+			mImageRects = imageRects;
+		}
+
+		final int index = mSize;
+		final int base = index * 4;
+		mSoundCloudIds[index] = soundCloudId;
+		mServerRects[base] = left;
+		mServerRects[base + 1] = top;
+		mServerRects[base + 2] = right;
+		mServerRects[base + 3] = bottom;
+		mImageRects[base] = mImageRects[base + 1] = mImageRects[base + 2] = mImageRects[base + 3] = 0;
+		mSize++;
+		return index;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public void clear() {
+		mSize = 0;
+	}
+
+	public long getSoundCloudId(int index) {
+		return mSoundCloudIds[index];
+	}
+
+	public void getServerRect(int index, Rect out) {
+		final int base = index * 4;
+		out.set(mServerRects[base], mServerRects[base + 1], mServerRects[base + 2], mServerRects[base + 3]);
+	}
+
+	public void getImageRect(int index, Rect out) {
+		final int base = index * 4;
+		out.set(mImageRects[base], mImageRects[base + 1], mImageRects[base + 2], mImageRects[base + 3]);
+	}
+
+	public void setImageRect(int index, Rect imageRect) {
+		final int base = index * 4;
+		mImageRects[base] = imageRect.left;
+		mImageRects[base + 1] = imageRect.top;
+		mImageRects[base + 2] = imageRect.right;
+		mImageRects[base + 3] = imageRect.bottom;
+	}
+
+	public boolean imageRectEquals(int index, Rect rect) {
+		final int base = index * 4;
+		return rect != null && mImageRects[base] == rect.left && mImageRects[base + 1] == rect.top &&
+				mImageRects[base + 2] == rect.right && mImageRects[base + 3] == rect.bottom;
+	}
+}
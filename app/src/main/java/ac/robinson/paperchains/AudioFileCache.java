@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, least-recently-used disk cache of narration audio, keyed by SoundCloud track id. Tracks are
+ * downloaded in the background one at a time, and requesting a download cancels any others, so the most recently
+ * requested track is always fetched first. Interrupted or cancelled downloads are kept and resumed with a range request
+ * the next time the track is downloaded. Listeners are called on the UI thread, and not at all after
+ * {@link #shutdown()}.
+ */
+class AudioFileCache {
+
+	private static final String TAG = "AudioFileCache";
+
+	private static final String CACHE_DIRECTORY = "audio";
+	private static final String AUDIO_FILE_SUFFIX = ".audio";
+	private static final String PARTIAL_FILE_SUFFIX = ".part";
+
+	private static final long MAX_CACHE_SIZE = 50 * 1024 * 1024; // bytes, including partial downloads
+	private static final int CONNECTION_TIMEOUT = 15000; // ms
+	private static final int BUFFER_SIZE = 8192;
+
+	public interface DownloadListener {
+		void audioDownloadCompleted(long soundCloudId, String audioPath);
+
+		void audioDownloadFailed(long soundCloudId);
+	}
+
+	private static class Download {
+		DownloadListener mListener; // guarded by mDownloads
+		volatile boolean mCancelled;
+	}
+
+	private final File mCacheDirectory;
+	private final ExecutorService mDownloadExecutor = Executors.newSingleThreadExecutor(); // also used for disk access
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	// track id -> its queued or running download; only the most recent listener for each track is kept
+	private final HashMap<Long, Download> mDownloads = new HashMap<>();
+
+	// diagnostics
+	private final AtomicLong mHitCount = new AtomicLong();
+	private final AtomicLong mMissCount = new AtomicLong();
+	private final AtomicLong mEvictedBytes = new AtomicLong();
+
+	public AudioFileCache(Context context) {
+		mCacheDirectory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+	}
+
+	/**
+	 * Gets the cached audio for a track, marking it as recently used
+	 *
+	 * @param soundCloudId the track id
+	 * @return the path of the cached audio file, or null if the track has not been (completely) downloaded
+	 */
+	public String get(long soundCloudId) {
+		final File audioFile = getAudioFile(soundCloudId);
+		if (audioFile.exists()) {
+			if (!mDownloadExecutor.isShutdown()) {
+				// modification time is our LRU order; updated on the download thread so that trimming sees it in order
+				final long accessTime = System.currentTimeMillis();
+				mDownloadExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						//noinspection ResultOfMethodCallIgnored
+						audioFile.setLastModified(accessTime);
+					}
+				});
+			}
+			mHitCount.incrementAndGet();
+			return audioFile.getAbsolutePath();
+		}
+		mMissCount.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Downloads a track into the cache in the background, resuming any previous partial download. Any other pending
+	 * or running downloads are cancelled (and their listeners told that they failed). If the track is already being
+	 * downloaded, the listener replaces any that was given for the earlier request.
+	 *
+	 * @param soundCloudId the track id
+	 * @param url          the track's (resolved) stream url
+	 * @param listener     notified when the track is cached or the download fails (may be null)
+	 */
+	public void download(final long soundCloudId, final String url, DownloadListener listener) {
+		final Download download;
+		synchronized (mDownloads) {
+			if (mDownloadExecutor.isShutdown()) {
+				return;
+			}
+			Download existing = mDownloads.get(soundCloudId);
+			if (existing != null && !existing.mCancelled) {
+				existing.mListener = listener; // still queued or running, so will notify this listener instead
+				return;
+			}
+			for (Download other : mDownloads.values()) {
+				other.mCancelled = true; // the user has moved on - fetch this track first
+			}
+			download = new Download();
+			download.mListener = listener;
+			mDownloads.put(soundCloudId, download);
+		}
+
+		mDownloadExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				File audioFile = getAudioFile(soundCloudId);
+				boolean completed = false;
+				try {
+					if (!audioFile.exists()) {
+						downloadFile(soundCloudId, url, download);
+						trimToSize(soundCloudId);
+					}
+					completed = true;
+				} catch (IOException e) {
+					Log.d(TAG, "Audio download interrupted for track " + soundCloudId + ": " + e.getMessage());
+				} finally {
+					DownloadListener listener;
+					synchronized (mDownloads) {
+						if (mDownloads.get(soundCloudId) == download) {
+							mDownloads.remove(soundCloudId); // (a cancelled download may have been requested again)
+						}
+						listener = download.mListener;
+					}
+					if (listener != null) {
+						notifyListener(listener, soundCloudId, completed ? audioFile.getAbsolutePath() : null);
+					}
+				}
+			}
+		});
+	}
+
+	private void notifyListener(final DownloadListener listener, final long soundCloudId, final String audioPath) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (mDownloadExecutor.isShutdown()) {
+					return; // our owner has finished with us
+				}
+				if (audioPath != null) {
+					listener.audioDownloadCompleted(soundCloudId, audioPath);
+				} else {
+					listener.audioDownloadFailed(soundCloudId);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Removes a track from the cache (for example, if it could not be played), along with any partial download
+	 *
+	 * @param soundCloudId the track id
+	 */
+	public void remove(final long soundCloudId) {
+		if (mDownloadExecutor.isShutdown()) {
+			return;
+		}
+		mDownloadExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				//noinspection ResultOfMethodCallIgnored
+				getAudioFile(soundCloudId).delete();
+				//noinspection ResultOfMethodCallIgnored
+				new File(mCacheDirectory, soundCloudId + PARTIAL_FILE_SUFFIX).delete();
+			}
+		});
+	}
+
+	/**
+	 * Stops accepting new downloads. Downloads that have already been requested will still complete.
+	 */
+	public void shutdown() {
+		mDownloadExecutor.shutdown();
+	}
+
+	public long getHitCount() {
+		return mHitCount.get();
+	}
+
+	public long getMissCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * @return the total number of bytes removed from the cache to keep it within its size limit
+	 */
+	public long getEvictedBytes() {
+		return mEvictedBytes.get();
+	}
+
+	private void downloadFile(long soundCloudId, String url, Download download) throws IOException {
+		if (download.mCancelled) {
+			throw new IOException("Download cancelled");
+		}
+		if (!mCacheDirectory.exists() && !mCacheDirectory.mkdirs()) {
+			throw new IOException("Unable to create cache directory");
+		}
+
+		File partialFile = new File(mCacheDirectory, soundCloudId + PARTIAL_FILE_SUFFIX);
+		long existingLength = partialFile.exists() ? partialFile.length() : 0;
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		try {
+			connection.setConnectTimeout(CONNECTION_TIMEOUT);
+			connection.setReadTimeout(CONNECTION_TIMEOUT);
+			if (existingLength > 0) {
+				connection.setRequestProperty("Range", "bytes=" + existingLength + "-");
+			}
+
+			int responseCode = connection.getResponseCode();
+			boolean append;
+			if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+				append = true;
+			} else if (responseCode == HttpURLConnection.HTTP_OK) {
+				append = false; // the server ignored our range request (or we didn't make one) - start again
+				existingLength = 0;
+			} else {
+				if (responseCode == 416) { // range not satisfiable - the partial file is not usable
+					//noinspection ResultOfMethodCallIgnored
+					partialFile.delete();
+				}
+				throw new IOException("Unexpected response code " + responseCode);
+			}
+
+			long expectedLength = -1;
+			String contentLength = connection.getHeaderField("Content-Length");
+			if (contentLength != null) {
+				try {
+					expectedLength = existingLength + Long.parseLong(contentLength);
+				} catch (NumberFormatException ignored) {
+				}
+			}
+
+			InputStream inputStream = connection.getInputStream();
+			//noinspection TryFinallyCanBeTryWithResources
+			try {
+				FileOutputStream outputStream = new FileOutputStream(partialFile, append);
+				//noinspection TryFinallyCanBeTryWithResources
+				try {
+					byte[] buf = new byte[BUFFER_SIZE];
+					int len;
+					while ((len = inputStream.read(buf)) > 0) {
+						outputStream.write(buf, 0, len);
+						if (download.mCancelled) {
+							throw new IOException("Download cancelled"); // keep what we have, to resume later
+						}
+					}
+				} finally {
+					outputStream.close();
+				}
+			} finally {
+				inputStream.close();
+			}
+
+			if (expectedLength >= 0 && partialFile.length() != expectedLength) {
+				throw new IOException("Incomplete download (" + partialFile.length() + " of " + expectedLength + ")");
+			}
+			if (!partialFile.renameTo(getAudioFile(soundCloudId))) {
+				throw new IOException("Unable to move completed download");
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private void trimToSize(long keepSoundCloudId) {
+		File[] files = mCacheDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		long totalSize = 0;
+		for (File file : files) {
+			totalSize += file.length();
+		}
+		if (totalSize <= MAX_CACHE_SIZE) {
+			return;
+		}
+
+		// remove the least recently used files first (never the file we've just downloaded)
+		final long[] lastModified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			lastModified[i] = files[i].lastModified(); // cached, as lastModified could change during sorting
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				return lastModified[lhs] < lastModified[rhs] ? -1 : (lastModified[lhs] == lastModified[rhs] ? 0 : 1);
+			}
+		});
+
+		String keepFileName = getAudioFile(keepSoundCloudId).getName();
+		for (Integer i : order) {
+			if (totalSize <= MAX_CACHE_SIZE) {
+				break;
+			}
+			File file = files[i];
+			if (file.getName().equals(keepFileName)) {
+				continue;
+			}
+			long length = file.length();
+			if (file.delete()) {
+				totalSize -= length;
+				mEvictedBytes.addAndGet(length);
+			}
+		}
+	}
+
+	private File getAudioFile(long soundCloudId) {
+		return new File(mCacheDirectory, soundCloudId + AUDIO_FILE_SUFFIX);
+	}
+}
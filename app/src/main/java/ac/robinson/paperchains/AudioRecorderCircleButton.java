@@ -101,7 +101,8 @@ public class AudioRecorderCircleButton extends ImageView {
 		if (audioRecorder != null && audioRecorder.isRecording()) {
 			canvas.drawCircle(centerX, centerY, recordingRingRadius + recordingAnimationProgress, recordingPaint);
 
-			float newAmplitude = audioRecorder.getMaxAmplitude() / 16384f;
+			// sampled in the background, so this never blocks drawing (full scale is half of the maximum amplitude)
+			float newAmplitude = audioRecorder.getAmplitudeMeter().getPeak() * 2;
 			if (newAmplitude - currentAmplitude > 0.1) {
 				currentAmplitude = newAmplitude;
 				showRecordingRing();
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of mutable bitmaps for reuse, bounded by the total number of bytes held. Bitmaps are matched by exact size and
+ * pixel format, so any bitmap from the pool is also suitable for BitmapFactory.Options.inBitmap on all versions that
+ * support it. The least recently released bitmaps are recycled first when the pool is full. Thread safe.
+ */
+class BitmapPool {
+
+	private int mMaxBytes;
+	private int mBytes;
+
+	// there are rarely more than a few different sizes in use, so a linear search is fine
+	private final ArrayList<Bitmap> mBitmaps = new ArrayList<>(); // least recently released first
+
+	public BitmapPool(int maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Gets a mutable bitmap, reusing a pooled one if possible. The contents of reused bitmaps are undefined unless the
+	 * format has an alpha channel, in which case they are cleared.
+	 */
+	public Bitmap get(int width, int height, Bitmap.Config config) {
+		synchronized (this) {
+			for (int i = mBitmaps.size() - 1; i >= 0; i--) {
+				Bitmap bitmap = mBitmaps.get(i);
+				if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+					mBitmaps.remove(i);
+					mBytes -= getByteCount(bitmap);
+					if (bitmap.hasAlpha()) {
+						bitmap.eraseColor(Color.TRANSPARENT);
+					}
+					return bitmap;
+				}
+			}
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Returns a bitmap to the pool. The caller must not use it afterwards.
+	 */
+	public synchronized void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || mBitmaps.contains(bitmap)) {
+			return;
+		}
+		final int byteCount = getByteCount(bitmap);
+		if (!bitmap.isMutable() || byteCount > mMaxBytes) {
+			bitmap.recycle();
+			return;
+		}
+
+		mBitmaps.add(bitmap);
+		mBytes += byteCount;
+		trimToSize();
+	}
+
+	/**
+	 * Changes the maximum number of bytes to hold, recycling the least recently released bitmaps if necessary
+	 */
+	public synchronized void setMaxBytes(int maxBytes) {
+		mMaxBytes = maxBytes;
+		trimToSize();
+	}
+
+	private void trimToSize() {
+		while (mBytes > mMaxBytes) {
+			Bitmap oldest = mBitmaps.remove(0);
+			mBytes -= getByteCount(oldest);
+			oldest.recycle();
+		}
+	}
+
+	/**
+	 * Recycles all pooled bitmaps
+	 */
+	public synchronized void clear() {
+		for (Bitmap bitmap : mBitmaps) {
+			bitmap.recycle();
+		}
+		mBitmaps.clear();
+		mBytes = 0;
+	}
+
+	/**
+	 * @return the number of pixel bytes currently held by the pool
+	 */
+	public synchronized int getByteCount() {
+		return mBytes;
+	}
+
+	/**
+	 * @return the number of bytes used by a bitmap's pixels
+	 */
+	public static int getByteCount(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Records rendering performance samples - per-frame draw time, frames per fling and touch-to-frame latency - so that
+ * they can be summarised (as percentiles of the most recent samples) in a debug overlay, to logcat or to a file.
+ * <p/>
+ * Recording is lock-free and does not allocate, so it is safe to call on every frame; summaries may be requested from
+ * any thread.
+ */
+class FrameStats {
+
+	private static final String TAG = "FrameStats";
+
+	private static final int SAMPLE_CAPACITY = 256; // must be a power of two
+	private static final long MAX_INPUT_LATENCY = 1000; // ms; longer delays mean the input did not cause a redraw
+
+	private final SampleBuffer mDrawTimes = new SampleBuffer(SAMPLE_CAPACITY); // microseconds
+	private final SampleBuffer mInputLatencies = new SampleBuffer(SAMPLE_CAPACITY); // milliseconds
+	private final SampleBuffer mFlingFrames = new SampleBuffer(SAMPLE_CAPACITY); // frames
+
+	/**
+	 * A fixed-size ring buffer of the most recent samples of a value. Once full, new samples overwrite the oldest.
+	 */
+	private static class SampleBuffer {
+		private final AtomicIntegerArray mSamples;
+		private final AtomicInteger mCount = new AtomicInteger();
+		private final int mMask;
+
+		public SampleBuffer(int capacity) {
+			mSamples = new AtomicIntegerArray(capacity);
+			mMask = capacity - 1;
+		}
+
+		public void add(int value) {
+			mSamples.set(mCount.getAndIncrement() & mMask, value);
+		}
+
+		public void clear() {
+			mCount.set(0);
+		}
+
+		/**
+		 * @return the current samples, sorted in ascending order
+		 */
+		public int[] getSortedSamples() {
+			final int count = mCount.get();
+			final int size = count < 0 || count > mSamples.length() ? mSamples.length() : count; // < 0 on overflow
+			int[] samples = new int[size];
+			for (int i = 0; i < size; i++) {
+				samples[i] = mSamples.get(i);
+			}
+			Arrays.sort(samples);
+			return samples;
+		}
+
+		public String getSummary(String name, float scale, String unit) {
+			final int[] samples = getSortedSamples();
+			if (samples.length == 0) {
+				return String.format(Locale.US, "%s: no samples", name);
+			}
+			return String.format(Locale.US, "%s (%s, n=%d): p50 %.1f, p90 %.1f, p99 %.1f, max %.1f", name, unit,
+					samples.length, getPercentile(samples, 50) * scale, getPercentile(samples, 90) * scale,
+					getPercentile(samples, 99) * scale, samples[samples.length - 1] * scale);
+		}
+
+		private static int getPercentile(int[] sortedSamples, int percentile) {
+			// nearest-rank method
+			final int rank = (int) Math.ceil(percentile / 100f * sortedSamples.length);
+			return sortedSamples[Math.max(0, rank - 1)];
+		}
+	}
+
+	/**
+	 * Records the time taken to draw a frame
+	 *
+	 * @param nanos the draw time, in nanoseconds
+	 */
+	public void recordDrawTime(long nanos) {
+		mDrawTimes.add((int) Math.min(Integer.MAX_VALUE, nanos / 1000));
+	}
+
+	/**
+	 * Records the time between a touch event and the frame that was drawn in response to it
+	 *
+	 * @param millis the latency, in milliseconds - values over one second are ignored, as they will have been caused
+	 *               by touches that did not result in a redraw
+	 */
+	public void recordInputLatency(long millis) {
+		if (millis >= 0 && millis <= MAX_INPUT_LATENCY) {
+			mInputLatencies.add((int) millis);
+		}
+	}
+
+	/**
+	 * Records the number of frames that were rendered during a fling animation
+	 *
+	 * @param frameCount the number of frames
+	 */
+	public void recordFling(int frameCount) {
+		mFlingFrames.add(frameCount);
+	}
+
+	public void clear() {
+		mDrawTimes.clear();
+		mInputLatencies.clear();
+		mFlingFrames.clear();
+	}
+
+	/**
+	 * @return a summary of the recorded samples, one line per statistic
+	 */
+	public String[] getSummary() {
+		return new String[]{
+				mDrawTimes.getSummary("Draw time", 0.001f, "ms"),
+				mInputLatencies.getSummary("Touch latency", 1, "ms"),
+				mFlingFrames.getSummary("Fling frames", 1, "frames")
+		};
+	}
+
+	/**
+	 * Writes a summary of the recorded samples to logcat
+	 */
+	public void logSummary() {
+		for (String line : getSummary()) {
+			Log.i(TAG, line);
+		}
+	}
+
+	/**
+	 * Appends a summary of the recorded samples to a file, so that results from different devices can be compared
+	 *
+	 * @param file  the file to append to
+	 * @param label a label for this summary (e.g., the device model)
+	 * @return true if the summary was written successfully
+	 */
+	public boolean writeSummary(File file, String label) {
+		try {
+			OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+			//noinspection TryFinallyCanBeTryWithResources
+			try {
+				writer.write(String.format(Locale.US, "%s, %tF %<tT\n", label, System.currentTimeMillis()));
+				for (String line : getSummary()) {
+					writer.write(line);
+					writer.write('\n');
+				}
+				writer.write('\n');
+			} finally {
+				writer.close();
+			}
+			return true;
+		} catch (IOException e) {
+			Log.d(TAG, "Unable to write frame stats to " + file + ": " + e.getMessage());
+			return false;
+		}
+	}
+}
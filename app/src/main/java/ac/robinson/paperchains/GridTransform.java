@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.Matrix;
+import android.graphics.PointF;
+
+import ac.robinson.dualqrscanner.ImageParameters;
+import ac.robinson.dualqrscanner.QRImageParser;
+
+/**
+ * Converts between grid (i.e., code server) coordinates and image coordinates for a parsed page. The mapping is
+ * derived once from {@link QRImageParser#getImagePosition(ImageParameters, PointF)} by fitting a matrix to the images
+ * of four reference points, after which any number of points can be mapped in one call, in either direction.
+ * <p/>
+ * If the fitted matrix does not reproduce the parser's mapping (checked at a fifth point) we fall back to converting
+ * each point individually, so results are always consistent with QRImageParser.
+ */
+class GridTransform {
+
+	private static final float REFERENCE_SIZE = 1000; // grid units between reference points
+	private static final float MAX_FIT_ERROR = 0.5f; // image pixels
+
+	/**
+	 * Converts individual points between grid and image coordinates - normally via QRImageParser, but replaceable so
+	 * that the transform can be tested against a known mapping
+	 */
+	interface PointMapper {
+		PointF gridToImage(PointF gridPoint);
+
+		PointF imageToGrid(PointF imagePoint);
+	}
+
+	private final PointMapper mPointMapper;
+	private final Matrix mGridToImage = new Matrix();
+	private final Matrix mImageToGrid = new Matrix();
+	private final boolean mUseMatrix;
+
+	private final PointF mPoint = new PointF();
+
+	public GridTransform(final ImageParameters imageParameters) {
+		this(new PointMapper() {
+			@Override
+			public PointF gridToImage(PointF gridPoint) {
+				return QRImageParser.getImagePosition(imageParameters, gridPoint);
+			}
+
+			@Override
+			public PointF imageToGrid(PointF imagePoint) {
+				return QRImageParser.getGridPosition(imageParameters, imagePoint);
+			}
+		});
+	}
+
+	GridTransform(PointMapper pointMapper) {
+		mPointMapper = pointMapper;
+
+		float[] gridPoints = { 0, 0, REFERENCE_SIZE, 0, REFERENCE_SIZE, REFERENCE_SIZE, 0, REFERENCE_SIZE };
+		float[] imagePoints = new float[gridPoints.length];
+		for (int i = 0; i < gridPoints.length; i += 2) {
+			PointF imagePoint = pointMapper.gridToImage(new PointF(gridPoints[i], gridPoints[i + 1]));
+			imagePoints[i] = imagePoint.x;
+			imagePoints[i + 1] = imagePoint.y;
+		}
+
+		boolean useMatrix = mGridToImage.setPolyToPoly(gridPoints, 0, imagePoints, 0, gridPoints.length / 2) &&
+				mGridToImage.invert(mImageToGrid);
+		if (useMatrix) {
+			// check the fit against the parser at a point we didn't use to derive it
+			PointF expected = pointMapper.gridToImage(new PointF(REFERENCE_SIZE / 3, REFERENCE_SIZE / 2));
+			float[] actual = { REFERENCE_SIZE / 3, REFERENCE_SIZE / 2 };
+			mGridToImage.mapPoints(actual);
+			useMatrix = Math.abs(actual[0] - expected.x) <= MAX_FIT_ERROR && Math.abs(actual[1] - expected.y) <=
+					MAX_FIT_ERROR;
+		}
+		mUseMatrix = useMatrix;
+	}
+
+	/**
+	 * @return whether points are mapped via the fitted matrix (rather than individually)
+	 */
+	boolean isUsingMatrix() {
+		return mUseMatrix;
+	}
+
+	/**
+	 * Converts points from grid coordinates to image coordinates, in place
+	 *
+	 * @param points packed x, y pairs
+	 */
+	public void gridToImage(float[] points) {
+		if (mUseMatrix) {
+			mGridToImage.mapPoints(points);
+			return;
+		}
+		for (int i = 0; i + 1 < points.length; i += 2) {
+			mPoint.set(points[i], points[i + 1]);
+			PointF imagePoint = mPointMapper.gridToImage(mPoint);
+			points[i] = imagePoint.x;
+			points[i + 1] = imagePoint.y;
+		}
+	}
+
+	/**
+	 * Converts points from image coordinates to grid coordinates, in place
+	 *
+	 * @param points packed x, y pairs
+	 */
+	public void imageToGrid(float[] points) {
+		if (mUseMatrix) {
+			mImageToGrid.mapPoints(points);
+			return;
+		}
+		for (int i = 0; i + 1 < points.length; i += 2) {
+			mPoint.set(points[i], points[i + 1]);
+			PointF gridPoint = mPointMapper.imageToGrid(mPoint);
+			points[i] = gridPoint.x;
+			points[i + 1] = gridPoint.y;
+		}
+	}
+}
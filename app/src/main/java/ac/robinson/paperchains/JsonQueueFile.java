@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Reads and writes the JSON arrays used to persist pending work (such as uploads and area registrations) between
+ * sessions. Writes go via a temporary file so that a failed write never leaves a partial queue.
+ */
+class JsonQueueFile {
+
+	private static final String CHARSET = "UTF-8";
+
+	private JsonQueueFile() {
+	}
+
+	/**
+	 * @return the array stored in the given file, or an empty array if the file does not exist or cannot be read
+	 */
+	public static JSONArray read(File queueFile) {
+		if (!queueFile.exists()) {
+			return new JSONArray();
+		}
+		try {
+			Reader reader = new InputStreamReader(new FileInputStream(queueFile), CHARSET);
+			StringBuilder contents = new StringBuilder();
+			//noinspection TryFinallyCanBeTryWithResources
+			try {
+				char[] buf = new char[1024];
+				int len;
+				while ((len = reader.read(buf)) > 0) {
+					contents.append(buf, 0, len);
+				}
+			} finally {
+				reader.close();
+			}
+			return new JSONArray(contents.toString());
+		} catch (IOException | JSONException e) {
+			return new JSONArray();
+		}
+	}
+
+	/**
+	 * Replaces the contents of the given file with the given array
+	 */
+	public static void write(File queueFile, JSONArray contents) {
+		File tempFile = new File(queueFile.getPath() + ".tmp");
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), CHARSET);
+			//noinspection TryFinallyCanBeTryWithResources
+			try {
+				writer.write(contents.toString());
+			} finally {
+				writer.close();
+			}
+			if (!tempFile.renameTo(queueFile)) {
+				//noinspection ResultOfMethodCallIgnored
+				tempFile.delete();
+			}
+		} catch (IOException e) {
+			//noinspection ResultOfMethodCallIgnored
+			tempFile.delete();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Disk-backed cache of code server page lookups, keyed by page id. Each entry holds the raw lookup response and the
+ * ETag (if any) it was served with, so that a known page can be displayed immediately and then revalidated.
+ */
+class PageAreaCache {
+
+	private static final String CACHE_DIRECTORY = "pages";
+	private static final String CHARSET = "UTF-8";
+
+	private final File mCacheDirectory;
+
+	public static class Entry {
+		public final String eTag; // null if the server did not provide one
+		public final String body;
+
+		public Entry(String eTag, String body) {
+			this.eTag = eTag;
+			this.body = body;
+		}
+	}
+
+	public PageAreaCache(Context context) {
+		mCacheDirectory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+	}
+
+	/**
+	 * Gets the cached lookup response for the given page
+	 *
+	 * @param pageId the page id
+	 * @return the cached entry, or null if the page has not been cached (or the cache file could not be read)
+	 */
+	public Entry get(String pageId) {
+		File cacheFile = getCacheFile(pageId);
+		if (cacheFile == null || !cacheFile.exists()) {
+			return null;
+		}
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), CHARSET));
+			//noinspection TryFinallyCanBeTryWithResources
+			try {
+				// first line is the ETag (empty if none); the remainder is the response body
+				String eTag = reader.readLine();
+				StringBuilder body = new StringBuilder();
+				char[] buf = new char[1024];
+				int len;
+				while ((len = reader.read(buf)) > 0) {
+					body.append(buf, 0, len);
+				}
+				if (eTag == null || body.length() == 0) {
+					return null;
+				}
+				return new Entry(TextUtils.isEmpty(eTag) ? null : eTag, body.toString());
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a lookup response for the given page, replacing any existing entry
+	 *
+	 * @param pageId the page id
+	 * @param eTag   the response's ETag, or null if there was none
+	 * @param body   the raw response body
+	 */
+	public void put(String pageId, String eTag, String body) {
+		File cacheFile = getCacheFile(pageId);
+		if (cacheFile == null || (!mCacheDirectory.exists() && !mCacheDirectory.mkdirs())) {
+			return;
+		}
+
+		// write to a temporary file first so that a failed write never leaves a partial entry
+		File tempFile = new File(mCacheDirectory, cacheFile.getName() + ".tmp");
+		try {
+			OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(tempFile), CHARSET);
+			//noinspection TryFinallyCanBeTryWithResources
+			try {
+				writer.write(eTag == null || eTag.indexOf('\n') >= 0 ? "" : eTag);
+				writer.write('\n');
+				writer.write(body);
+			} finally {
+				writer.close();
+			}
+			if (!tempFile.renameTo(cacheFile)) {
+				//noinspection ResultOfMethodCallIgnored
+				tempFile.delete();
+			}
+		} catch (IOException e) {
+			//noinspection ResultOfMethodCallIgnored
+			tempFile.delete();
+		}
+	}
+
+	private File getCacheFile(String pageId) {
+		try {
+			return new File(mCacheDirectory, URLEncoder.encode(pageId, CHARSET));
+		} catch (UnsupportedEncodingException e) {
+			return null; // UTF-8 is always supported
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.support.v4.util.LruCache;
+
+import ac.robinson.dualqrscanner.ImageParameters;
+
+/**
+ * In-memory cache of recently viewed pages, keyed by page id, so that returning to a page can show it immediately
+ * rather than waiting for a new picture and lookup. Pages are evicted least recently used first once their combined
+ * size exceeds a byte budget.
+ */
+class PageSessionCache {
+
+	// approximate per-area storage in AudioAreaStore: a long id plus two packed rects of four ints
+	private static final int BYTES_PER_AUDIO_AREA = 8 + 2 * 4 * 4;
+
+	public static class Page {
+		public final Bitmap bitmap; // downsampled - see imageWidth and imageHeight for the original size
+		public final int imageWidth;
+		public final int imageHeight;
+		public final ImageParameters imageParameters;
+		public final GridTransform gridTransform;
+		public final AudioAreaStore audioAreas;
+
+		public Page(Bitmap bitmap, int imageWidth, int imageHeight, ImageParameters imageParameters, GridTransform
+				gridTransform, AudioAreaStore audioAreas) {
+			this.bitmap = bitmap;
+			this.imageWidth = imageWidth;
+			this.imageHeight = imageHeight;
+			this.imageParameters = imageParameters;
+			this.gridTransform = gridTransform;
+			this.audioAreas = audioAreas;
+		}
+
+		private int getByteCount() {
+			return BitmapPool.getByteCount(bitmap) + audioAreas.size() * BYTES_PER_AUDIO_AREA;
+		}
+	}
+
+	private final LruCache<String, Page> mPages;
+
+	/**
+	 * @param maxBytes the maximum number of bytes to hold across all cached pages
+	 */
+	public PageSessionCache(int maxBytes) {
+		mPages = new LruCache<String, Page>(maxBytes) {
+			@Override
+			protected int sizeOf(String pageId, Page page) {
+				return page.getByteCount();
+			}
+		};
+	}
+
+	/**
+	 * Creates the version of a parsed image to cache, scaling it down so that its longest side is no more than
+	 * maxDimension. Can be called from a background thread.
+	 *
+	 * @return the scaled bitmap, or the original if it is already small enough
+	 */
+	public static Bitmap createPageBitmap(Bitmap bitmap, int maxDimension) {
+		final int bitmapWidth = bitmap.getWidth();
+		final int bitmapHeight = bitmap.getHeight();
+		final float scale = maxDimension / (float) Math.max(bitmapWidth, bitmapHeight);
+		if (scale < 1) {
+			// RGB_565 halves the size of the copy - the page is printed paper, so there is no need for alpha
+			Bitmap scaledBitmap = Bitmap.createBitmap(Math.max(1, Math.round(bitmapWidth * scale)), Math.max(1, Math
+					.round(bitmapHeight * scale)), Bitmap.Config.RGB_565);
+			new Canvas(scaledBitmap).drawBitmap(bitmap, null, new Rect(0, 0, scaledBitmap.getWidth(), scaledBitmap
+					.getHeight()), new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+			bitmap = scaledBitmap;
+		}
+		return bitmap;
+	}
+
+	/**
+	 * @return the cached page, or null if it is not cached
+	 */
+	public Page get(String pageId) {
+		return mPages.get(pageId);
+	}
+
+	public void put(String pageId, Page page) {
+		mPages.put(pageId, page);
+	}
+
+	public void clear() {
+		mPages.evictAll();
+	}
+
+	/**
+	 * @return the number of bytes currently held across all cached pages
+	 */
+	public int getByteCount() {
+		return mPages.size();
+	}
+}
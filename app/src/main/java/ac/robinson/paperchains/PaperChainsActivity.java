@@ -16,17 +16,20 @@
 
 package ac.robinson.paperchains;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.Path;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -47,25 +50,20 @@ import android.widget.Toast;
 
 import com.github.lassana.recorder.AudioRecorder;
 import com.loopj.android.http.AsyncHttpClient;
-import com.loopj.android.http.JsonHttpResponseHandler;
+import com.loopj.android.http.BaseJsonHttpResponseHandler;
 import com.loopj.android.http.RequestParams;
 import com.nineoldandroids.animation.AnimatorSet;
 import com.nineoldandroids.animation.ObjectAnimator;
 import com.sonyericsson.zoom.DynamicZoomControl;
 import com.sonyericsson.zoom.LongPressZoomListener;
 import com.soundcloud.api.Env;
-import com.soundcloud.api.Token;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
+import java.util.HashMap;
 
 import ac.robinson.dualqrscanner.CodeParameters;
 import ac.robinson.dualqrscanner.DecoderActivity;
@@ -74,6 +72,7 @@ import ac.robinson.dualqrscanner.QRImageParser;
 import ac.robinson.dualqrscanner.ViewfinderView;
 import ac.robinson.dualqrscanner.camera.CameraUtilities;
 import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HttpStatus;
 
 public class PaperChainsActivity extends DecoderActivity {
 
@@ -89,23 +88,45 @@ public class PaperChainsActivity extends DecoderActivity {
 
 	private static final int SOUNDCLOUD_LOGIN_RESULT = 1;
 
+	private static final int CACHE_MEMORY_FRACTION = 8; // cached pages and pooled bitmaps share 1/8 of the memory
+	private static final String FRAME_STATS_FILE = "frame_stats.txt"; // appended to whenever the overlay is hidden
+
 	private static final String BASE_URL = "http://www.enterise.info/";
-	private static final String CODE_SERVER_URL = BASE_URL + "codemaker/pages.php";
+	static final String CODE_SERVER_URL = BASE_URL + "codemaker/pages.php";
 	public static final String SOUNDCLOUD_LOGIN_URL = BASE_URL + "paperchains/soundcloud.html";
 
 	private PaperChainsView mImageView;
 	private DynamicZoomControl mZoomControl;
+	private boolean mFrameStatsVisible; // debug builds only
 	private LongPressZoomListener mZoomListener;
 
+	private Bitmap mPageCacheBitmap; // downsampled version of the page to use if it is cached; null until created
+	private int mPageImageGeneration; // incremented for each new page image, to ignore old mPageCacheBitmap results
+	private int mPageImageWidth;
+	private int mPageImageHeight;
+	private boolean mShowingCachedPage; // true until a new high resolution picture of the cached page is received
 	private ImageParameters mImageParameters;
+	private GridTransform mGridTransform; // converts between grid (server) and image coordinates
 
-	private final ArrayList<AudioAreaHolder> mAudioAreas = new ArrayList<>();
+	private AudioAreaStore mAudioAreas = new AudioAreaStore();
+	private final AudioAreaIndex mAudioAreaIndex = new AudioAreaIndex(); // ids match indices in mAudioAreas
+	private final AudioAreaHolder mAudioAreaHolder = new AudioAreaHolder(); // reused when accessing mAudioAreas
 	private MediaPlayer mAudioPlayer;
+	private long mPendingAudioTrackId = -1; // the track we are fetching for playback, if any
 	private AudioRecorder mAudioRecorder;
 	private Rect mCurrentAudioRect;
+	private final PointF mTouchPoint = new PointF(); // reused for screen coordinates when handling touches
+	private final Point mTouchImagePoint = new Point(); // reused for image coordinates when handling touches
+	private final HashMap<Long, Rect> mPendingUploadRects = new HashMap<>(); // upload id -> image rect, while uploading
 
 	private int mCurrentMode;
 	private String mPageId;
+	private String mLookupPageId; // the page we most recently requested areas for (may not yet be loaded)
+	private PageAreaCache mPageAreaCache;
+	private StreamUrlCache mStreamUrlCache;
+	private StreamUrlPrefetcher mStreamUrlPrefetcher;
+	private AudioFileCache mAudioFileCache;
+	private PageSessionCache mPageSessionCache;
 
 	private boolean mAudioAreasLoaded = false;
 	private boolean mImageParsed = false;
@@ -117,21 +138,6 @@ public class PaperChainsActivity extends DecoderActivity {
 
 	private RotateAnimation mRotateAnimation;
 
-	private class AudioAreaHolder {
-		public final long soundCloudId;
-		public final Rect serverRect;
-		public Rect imageRect;
-
-		public AudioAreaHolder(long soundCloudId, Rect serverRect) {
-			this.soundCloudId = soundCloudId;
-			this.serverRect = serverRect;
-		}
-
-		public void setImageRect(Rect imageRect) {
-			this.imageRect = imageRect;
-		}
-	}
-
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -164,14 +170,51 @@ public class PaperChainsActivity extends DecoderActivity {
 		setupSoundCloudApiWrappers();
 
 		mCurrentMode = MODE_CAPTURE;
+		mPageAreaCache = new PageAreaCache(PaperChainsActivity.this);
+		mStreamUrlCache = new StreamUrlCache(PaperChainsActivity.this);
+		mStreamUrlPrefetcher = new StreamUrlPrefetcher(sSoundCloudPlayerApiWrapper, mStreamUrlCache);
+		mAudioFileCache = new AudioFileCache(PaperChainsActivity.this);
+		mPageSessionCache = new PageSessionCache(getCacheMemoryBudget());
+		SoundCloudUploadQueue.getInstance(PaperChainsActivity.this).setUploadListener(new SoundCloudUploadQueue
+				.UploadListener() {
+			@Override
+			public void uploadCompleted(SoundCloudUploadQueue.Upload upload, long trackId) {
+				audioSaveCompleted(upload, trackId);
+			}
+
+			@Override
+			public void uploadFailed(SoundCloudUploadQueue.Upload upload) {
+				Rect pendingRect = mPendingUploadRects.remove(upload.id);
+				if (pendingRect != null) {
+					mImageView.removeAudioAreaRect(pendingRect);
+				}
+				Toast.makeText(PaperChainsActivity.this, getString(R.string.hint_audio_save_failed), Toast
+						.LENGTH_SHORT).show();
+			}
+		});
+		AreaRegistrationQueue.getInstance(PaperChainsActivity.this).setRegistrationListener(new AreaRegistrationQueue
+				.RegistrationListener() {
+			@Override
+			public void registrationRejected(AreaRegistrationQueue.Registration registration) {
+				Toast.makeText(PaperChainsActivity.this, getString(R.string.hint_audio_registration_failed), Toast
+						.LENGTH_SHORT).show();
+			}
+		});
 
 		// set up a zoomable view for the photo
 		mImageView = (PaperChainsView) findViewById(R.id.image_view);
+		updateBitmapPoolBudget();
 		mZoomControl = new DynamicZoomControl();
 		mImageView.setZoomState(mZoomControl.getZoomState());
 		mZoomControl.setAspectQuotient(mImageView.getAspectQuotient());
 		mZoomListener = new LongPressZoomListener(PaperChainsActivity.this);
 		mZoomListener.setZoomControl(mZoomControl);
+		mZoomControl.setFlingListener(new DynamicZoomControl.FlingListener() {
+			@Override
+			public void flingCompleted(int frameCount) {
+				mImageView.getFrameStats().recordFling(frameCount);
+			}
+		});
 
 		// set up buttons/handlers
 		mImageView.setOnTouchListener(mZoomListener);
@@ -183,7 +226,7 @@ public class PaperChainsActivity extends DecoderActivity {
 		});
 		mImageView.setScribbleCallback(new PaperChainsView.ScribbleCallback() {
 			@Override
-			public void scribbleCompleted(Path scribble) {
+			public void scribbleCompleted(ScribbleStroke scribble) {
 				processScribble(scribble);
 			}
 		});
@@ -226,6 +269,35 @@ public class PaperChainsActivity extends DecoderActivity {
 		}
 	}
 
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		if (mPageSessionCache != null) {
+			mPageSessionCache.clear();
+		}
+		if (mImageView != null) {
+			mImageView.clearBitmapPool();
+			updateBitmapPoolBudget();
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (mAudioRecorder != null) {
+			mAudioRecorder.release(); // also stops recording, and discards any segments that were not merged
+			mAudioRecorder = null;
+		}
+		if (mStreamUrlPrefetcher != null) {
+			mStreamUrlPrefetcher.shutdown();
+		}
+		if (mAudioFileCache != null) {
+			mAudioFileCache.shutdown();
+		}
+		SoundCloudUploadQueue.getInstance(PaperChainsActivity.this).setUploadListener(null);
+		AreaRegistrationQueue.getInstance(PaperChainsActivity.this).setRegistrationListener(null);
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		if (mCurrentMode == MODE_CAPTURE) {
@@ -248,6 +320,7 @@ public class PaperChainsActivity extends DecoderActivity {
 				menu.findItem(R.id.action_add_audio).setVisible(false);
 				break;
 		}
+		menu.findItem(R.id.action_frame_stats).setVisible(BuildConfig.DEBUG);
 		return super.onCreateOptionsMenu(menu);
 	}
 
@@ -266,11 +339,27 @@ public class PaperChainsActivity extends DecoderActivity {
 				switchMode(MODE_CAPTURE);
 				return true;
 
+			case R.id.action_frame_stats:
+				toggleFrameStats();
+				return true;
+
 			default:
 				return super.onOptionsItemSelected(item);
 		}
 	}
 
+	private void toggleFrameStats() {
+		mFrameStatsVisible = !mFrameStatsVisible;
+		mImageView.setFrameStatsOverlayEnabled(mFrameStatsVisible);
+		if (!mFrameStatsVisible) {
+			// save the results when hiding the overlay, so that we can compare devices
+			FrameStats frameStats = mImageView.getFrameStats();
+			frameStats.logSummary();
+			frameStats.writeSummary(new File(getFilesDir(), FRAME_STATS_FILE), Build.MANUFACTURER + " " + Build
+					.MODEL + " (API " + Build.VERSION.SDK_INT + ")");
+		}
+	}
+
 	@Override
 	protected void onDecodeCompleted() {
 		// Toast.makeText(TicQRActivity.this, "Decode completed; now taking picture", Toast.LENGTH_SHORT).show();
@@ -279,49 +368,134 @@ public class PaperChainsActivity extends DecoderActivity {
 	@Override
 	protected void onPageIdFound(final String id) {
 		// Toast.makeText(TicQRActivity.this, "Page ID found", Toast.LENGTH_SHORT).show();
+		mLookupPageId = id;
+
+		// if this page was viewed recently we can show it immediately (the new picture will replace it when taken)
+		PageSessionCache.Page cachedPage = mPageSessionCache.get(id);
+		if (cachedPage != null && !mImageParsed) {
+			mShowingCachedPage = true;
+			setPageImage(cachedPage.bitmap, cachedPage.imageWidth, cachedPage.imageHeight, cachedPage
+					.imageParameters, cachedPage.gridTransform);
+			setAudioAreas(id, new AudioAreaStore(cachedPage.audioAreas)); // the cached copy must not be modified
+		}
+
+		// if we've seen this page before, show its audio areas straight away, then revalidate them in the background
+		new AsyncTask<Void, Void, AudioAreaStore>() {
+			private PageAreaCache.Entry mCachedEntry;
+
+			@Override
+			protected AudioAreaStore doInBackground(Void... params) {
+				mCachedEntry = mPageAreaCache.get(id);
+				if (mCachedEntry != null) {
+					try {
+						AudioAreaStore cachedAreas = AudioAreaParser.parse(mCachedEntry.body);
+						if (cachedAreas != null) {
+							return cachedAreas;
+						}
+					} catch (IOException ignored) {
+					}
+					mCachedEntry = null;
+				}
+				return null;
+			}
 
-		new AsyncHttpClient().get(CODE_SERVER_URL, new RequestParams("lookup", id), new JsonHttpResponseHandler() {
+			@Override
+			protected void onPostExecute(AudioAreaStore cachedAreas) {
+				if (!id.equals(mLookupPageId)) {
+					return; // we've moved on to another page
+				}
+				if (cachedAreas != null) {
+					setAudioAreas(id, cachedAreas);
+				}
+				requestAudioAreas(id, mCachedEntry);
+			}
+		}.execute();
+	}
+
+	private void requestAudioAreas(final String id, final PageAreaCache.Entry servedEntry) {
+		AsyncHttpClient client = new AsyncHttpClient();
+		if (servedEntry != null && servedEntry.eTag != null) {
+			client.addHeader("If-None-Match", servedEntry.eTag);
+		}
+		client.get(CODE_SERVER_URL, new RequestParams("lookup", id), new BaseJsonHttpResponseHandler<AudioAreaStore>() {
 			private void handleFailure(int reason) {
+				if (mAudioAreasLoaded || !id.equals(mLookupPageId)) {
+					return; // we've either already shown a cached version of this page, or moved on to another page
+				}
+
 				// nothing we can do except browse the image
 				switchMode(MODE_IMAGE_ONLY);
 				Toast.makeText(PaperChainsActivity.this, getString(reason), Toast.LENGTH_SHORT).show();
 			}
 
 			@Override
-			public void onSuccess(int statusCode, Header[] headers, JSONObject response) {
-				try {
-					if ("ok".equals(response.getString("status"))) {
-						JSONArray areas = response.getJSONArray("audioAreas");
-						if (areas != null && !areas.isNull(0)) {
-							for (int i = 0; i < areas.length(); i++) {
-								JSONObject jsonBox = areas.getJSONObject(i);
-								mAudioAreas.add(new AudioAreaHolder(jsonBox.getLong("soundCloudId"), new Rect(jsonBox
-										.getInt("left"), jsonBox.getInt("top"), jsonBox.getInt("right"), jsonBox
-										.getInt("bottom"))));
-							}
-						}
+			protected AudioAreaStore parseResponse(String rawJsonData, boolean isFailure) throws Throwable {
+				// note: called on a background thread
+				return isFailure ? null : AudioAreaParser.parse(rawJsonData);
+			}
 
-						mPageId = id;
-						mAudioAreasLoaded = true;
-						if (mImageParsed) {
-							addAudioRects();
-							switchMode(MODE_LISTEN);
-						}
-					} else {
-						handleFailure(R.string.hint_json_error);
+			@Override
+			public void onSuccess(int statusCode, Header[] headers, String rawJsonResponse, AudioAreaStore response) {
+				if (response != null) {
+					mPageAreaCache.put(id, getHeaderValue(headers, "ETag"), rawJsonResponse);
+
+					// only update if this is still the current page and the areas differ from those we've shown
+					if (id.equals(mLookupPageId) && (servedEntry == null || !rawJsonResponse.equals(servedEntry.body))) {
+						setAudioAreas(id, response);
 					}
-				} catch (JSONException e) {
+				} else {
 					handleFailure(R.string.hint_json_error);
 				}
 			}
 
 			@Override
-			public void onFailure(int statusCode, Header[] headers, Throwable throwable, JSONObject errorResponse) {
-				handleFailure(R.string.hint_connection_error);
+			public void onFailure(int statusCode, Header[] headers, Throwable throwable, String rawJsonData,
+			                      AudioAreaStore errorResponse) {
+				if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+					return; // our cached version is up-to-date
+				}
+				// a failure with an OK status means that we couldn't parse the response
+				handleFailure(statusCode == HttpStatus.SC_OK ? R.string.hint_json_error : R.string
+						.hint_connection_error);
 			}
 		});
 	}
 
+	private void setAudioAreas(String pageId, AudioAreaStore audioAreas) {
+		mAudioAreas = audioAreas;
+		mPageId = pageId;
+
+		if (mAudioAreasLoaded && mImageParsed) {
+			// the page is already being displayed (from the cache) - just refresh its areas
+			mImageView.clearAudioAreaRects();
+			addAudioRects();
+			if (mCurrentAudioRect != null) {
+				mImageView.addAudioAreaRect(mCurrentAudioRect);
+			}
+			for (Rect pendingRect : mPendingUploadRects.values()) {
+				mImageView.addAudioAreaRect(pendingRect);
+			}
+			return;
+		}
+
+		mAudioAreasLoaded = true;
+		if (mImageParsed) {
+			addAudioRects();
+			switchMode(MODE_LISTEN);
+		}
+	}
+
+	private static String getHeaderValue(Header[] headers, String name) {
+		if (headers != null) {
+			for (Header header : headers) {
+				if (name.equalsIgnoreCase(header.getName())) {
+					return header.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
 	@Override
 	protected void onPictureError() {
 		// note: an automatic rescan is started whenever this occurs, so this is mainly designed for, e.g.,
@@ -334,16 +508,32 @@ public class PaperChainsActivity extends DecoderActivity {
 			codeParameters) {
 		// Toast.makeText(TicQRActivity.this, "Picture completed", Toast.LENGTH_SHORT).show();
 
-		mImageView.setImage(parsedBitmap);
-
-		mZoomControl.getZoomState().setPanX(0.5f);
-		mZoomControl.getZoomState().setPanY(0.5f);
-		mZoomControl.getZoomState().setZoom(1f);
-		mZoomControl.startFling(0, 0); // because stopFling doesn't work...
+		if (mShowingCachedPage) {
+			// refine the cached page with the new picture, unless they have already started adding audio to it
+			mShowingCachedPage = false;
+			if (mCurrentAudioRect == null) {
+				GridTransform previousTransform = mGridTransform;
+				setPageImage(parsedBitmap, parsedBitmap.getWidth(), parsedBitmap.getHeight(), imageParameters, new
+						GridTransform(imageParameters));
 
-		mImageView.setVisibility(View.VISIBLE);
+				// image coordinates differ between pictures, so all areas must be repositioned
+				mImageView.clearAudioAreaRects();
+				addAudioRects();
+				for (Rect pendingRect : mPendingUploadRects.values()) {
+					float[] points = { pendingRect.left, pendingRect.top, pendingRect.right, pendingRect.bottom };
+					previousTransform.imageToGrid(points);
+					mGridTransform.gridToImage(points);
+					pendingRect.set((int) Math.floor(Math.min(points[0], points[2])), (int) Math.floor(Math.min
+							(points[1], points[3])), (int) Math.ceil(Math.max(points[0], points[2])), (int) Math.ceil
+							(Math.max(points[1], points[3])));
+					mImageView.addAudioAreaRect(pendingRect);
+				}
+			}
+			return;
+		}
 
-		mImageParameters = imageParameters;
+		setPageImage(parsedBitmap, parsedBitmap.getWidth(), parsedBitmap.getHeight(), imageParameters, new
+				GridTransform(imageParameters));
 		// mCodeParameters = codeParameters; // not needed for this application
 
 		mImageParsed = true;
@@ -353,6 +543,73 @@ public class PaperChainsActivity extends DecoderActivity {
 		}
 	}
 
+	private void setPageImage(Bitmap bitmap, int imageWidth, int imageHeight, ImageParameters imageParameters,
+	                          GridTransform gridTransform) {
+		mImageView.setImage(bitmap, imageWidth, imageHeight);
+		if (!mImageParsed) {
+			mZoomControl.getZoomState().setPanX(0.5f);
+			mZoomControl.getZoomState().setPanY(0.5f);
+			mZoomControl.getZoomState().setZoom(1f);
+			mZoomControl.startFling(0, 0); // because stopFling doesn't work...
+		}
+
+		mImageView.setVisibility(View.VISIBLE);
+
+		createPageCacheBitmap(bitmap);
+		mPageImageWidth = imageWidth;
+		mPageImageHeight = imageHeight;
+		mImageParameters = imageParameters;
+		mGridTransform = gridTransform;
+		mImageParsed = true;
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private void createPageCacheBitmap(final Bitmap bitmap) {
+		// downsample in the background now, so that nothing needs to keep the full size image in case it is cached
+		final int imageGeneration = ++mPageImageGeneration;
+		final int maxDimension = Math.max(mImageView.getWidth(), mImageView.getHeight());
+		mPageCacheBitmap = null;
+		AsyncTask<Void, Void, Bitmap> task = new AsyncTask<Void, Void, Bitmap>() {
+			@Override
+			protected Bitmap doInBackground(Void... params) {
+				return PageSessionCache.createPageBitmap(bitmap, maxDimension);
+			}
+
+			@Override
+			protected void onPostExecute(Bitmap pageBitmap) {
+				if (imageGeneration == mPageImageGeneration) {
+					mPageCacheBitmap = pageBitmap;
+				}
+			}
+		};
+
+		// don't hold up the default serial executor's tasks (e.g., loading audio areas or stream urls)
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+		} else {
+			task.execute(); // tasks are already run in parallel on older versions
+		}
+	}
+
+	private void cachePage(String pageId) {
+		if (mPageCacheBitmap == null) {
+			return; // not yet downsampled (e.g., leaving the page straight away) - not worth caching
+		}
+		// mAudioAreas changes as areas are added, so we cache a copy
+		mPageSessionCache.put(pageId, new PageSessionCache.Page(mPageCacheBitmap, mPageImageWidth,
+				mPageImageHeight, mImageParameters, mGridTransform, new AudioAreaStore(mAudioAreas)));
+		updateBitmapPoolBudget();
+	}
+
+	private static int getCacheMemoryBudget() {
+		return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / CACHE_MEMORY_FRACTION);
+	}
+
+	private void updateBitmapPoolBudget() {
+		// unused bitmaps are less valuable than cached pages, so the pool just gets whatever the pages don't need
+		mImageView.setBitmapPoolMaxBytes(Math.max(0, getCacheMemoryBudget() - mPageSessionCache.getByteCount()));
+	}
+
 	private void switchMode(int newMode) {
 		// TODO: check we're not recording/saving audio before doing this? (currently we allow it somewhat hackily)
 		ActionBar actionBar = getSupportActionBar();
@@ -384,12 +641,23 @@ public class PaperChainsActivity extends DecoderActivity {
 				break;
 
 			case MODE_CAPTURE:
-				// reset our configuration and set up for rescanning
-				mAudioAreas.clear();
+				// keep the page we're leaving so we can show it immediately if it is scanned again
+				if (mImageParsed && mAudioAreasLoaded && mPageId != null) {
+					cachePage(mPageId);
+				}
+
+				// reset our configuration and set up for rescanning (note: not clearing mAudioAreas, as it is cached)
+				mStreamUrlPrefetcher.cancel();
+				mAudioAreas = new AudioAreaStore();
+				mAudioAreaIndex.clear();
 				mImageView.clearAudioAreaRects();
+				mPendingUploadRects.clear();
 
 				mAudioAreasLoaded = false;
 				mImageParsed = false;
+				mShowingCachedPage = false;
+				mPageCacheBitmap = null;
+				mPageImageGeneration++;
 				mImageView.setVisibility(View.INVISIBLE); // must be invisible (not gone) as we need its dimensions
 
 				resetAudioPlayer(); // TODO: fix odd intermittent rotation issue with the play button after rescanning
@@ -420,57 +688,93 @@ public class PaperChainsActivity extends DecoderActivity {
 	}
 
 	private void addAudioRects() {
-		for (AudioAreaHolder holder : mAudioAreas) {
-			// convert grid-based coordinates to image-based coordinates, accounting for image rotation/inversion by
-			// making sure to use the min/max values of each coordinate
-			Rect rect = holder.serverRect;
-			PointF leftTop = QRImageParser.getImagePosition(mImageParameters, new PointF(rect.left, rect.top));
-			PointF rightBottom = QRImageParser.getImagePosition(mImageParameters, new PointF(rect.right, rect.bottom));
-			RectF displayRect = new RectF(Math.min(leftTop.x, rightBottom.x), Math.min(leftTop.y, rightBottom.y), Math
-					.max(rightBottom.x, leftTop.x), Math.max(leftTop.y, rightBottom.y));
-			Rect imageRect = new Rect();
-			displayRect.roundOut(imageRect);
-
-			holder.setImageRect(imageRect);
-			mImageView.addAudioAreaRect(imageRect);
+		mAudioAreaIndex.clear();
+		mStreamUrlPrefetcher.cancel();
+		PointF viewportCentre = new PointF();
+		mImageView.getVisibleImageCentre(viewportCentre);
+
+		// convert all grid-based coordinates to image-based coordinates at once (packed as left, top, right, bottom)
+		final int areaCount = mAudioAreas.size();
+		float[] points = new float[areaCount * 4];
+		Rect rect = new Rect();
+		for (int i = 0; i < areaCount; i++) {
+			mAudioAreas.getServerRect(i, rect);
+			points[i * 4] = rect.left;
+			points[i * 4 + 1] = rect.top;
+			points[i * 4 + 2] = rect.right;
+			points[i * 4 + 3] = rect.bottom;
+		}
+		mGridTransform.gridToImage(points);
+
+		for (int i = 0; i < areaCount; i++) {
+			// account for image rotation/inversion by making sure to use the min/max values of each coordinate (and
+			// round outwards, as with RectF.roundOut)
+			final float x1 = points[i * 4];
+			final float y1 = points[i * 4 + 1];
+			final float x2 = points[i * 4 + 2];
+			final float y2 = points[i * 4 + 3];
+			rect.set((int) Math.floor(Math.min(x1, x2)), (int) Math.floor(Math.min(y1, y2)), (int) Math.ceil(Math.max
+					(x1, x2)), (int) Math.ceil(Math.max(y1, y2)));
+
+			AudioAreaHolder holder = mAudioAreaHolder.moveTo(mAudioAreas, i);
+			holder.setImageRect(rect); // note: rect values are copied here, and by the index and view below
+			mAudioAreaIndex.add(rect);
+			mImageView.addAudioAreaRect(rect);
+
+			// resolve stream locations in advance, starting with the areas closest to the centre of the view
+			float xDistance = rect.exactCenterX() - viewportCentre.x;
+			float yDistance = rect.exactCenterY() - viewportCentre.y;
+			mStreamUrlPrefetcher.prefetch(holder.getSoundCloudId(), xDistance * xDistance + yDistance * yDistance);
 		}
 	}
 
+	private final PaperChainsView.DragCallback mPlaybackDragCallback = new PaperChainsView.DragCallback() {
+		@Override
+		public void dragStarted() {
+			resetAudioPlayer(); // we don't update the button position on drag; for now, just stop play
+		}
+	};
+
 	private void onImageClick() {
 		resetAudioPlayer();
 		supportInvalidateOptionsMenu();
 
-		Point touchPoint = mImageView.screenPointToImagePoint(mZoomListener.getLastTouchPoint());
-		boolean rectTouched = false;
-		for (AudioAreaHolder holder : mAudioAreas) {
-			Rect rect = holder.imageRect;
-			if (rect.contains(touchPoint.x, touchPoint.y)) {
-				rectTouched = true;
-				if (mCurrentMode == MODE_ADD) {
-					if (rect.equals(mCurrentAudioRect)) {
-						mRecordButton.performClick();
-					} else {
-						resetRecordingInterface();
+		mZoomListener.getLastTouchPoint(mTouchPoint);
+		mImageView.screenPointToImagePoint(mTouchPoint, mTouchImagePoint);
+		final int touchedCount = mAudioAreaIndex.findPoint(mTouchImagePoint.x, mTouchImagePoint.y); // smallest first
+		if (touchedCount > 0) {
+			if (mCurrentMode == MODE_ADD) {
+				boolean currentRectTouched = false;
+				for (int i = 0; i < touchedCount; i++) {
+					if (mAudioAreas.imageRectEquals(mAudioAreaIndex.getResult(i), mCurrentAudioRect)) {
+						currentRectTouched = true;
+						break;
 					}
-					break;
-				} else if (mCurrentMode == MODE_LISTEN) {
-					// TODO: handle overlapping rectangles (pop up several buttons as options?)
-					initialisePlaybackButton(mZoomListener.getLastTouchPoint());
-					mImageView.setDragCallback(new PaperChainsView.DragCallback() {
-						@Override
-						public void dragStarted() {
-							resetAudioPlayer(); // we don't update the button position on drag; for now, just stop play
-						}
-					});
-					new SoundCloudUrlFetcherTask(PaperChainsActivity.this, sSoundCloudPlayerApiWrapper).execute(holder
-							.soundCloudId);
-					break;
+				}
+				if (currentRectTouched) {
+					mRecordButton.performClick();
+				} else {
+					resetRecordingInterface();
+				}
+			} else if (mCurrentMode == MODE_LISTEN) {
+				// when areas overlap we play the smallest, as it is the most specific to the touched point
+				// TODO: offer the other overlapping areas as options (pop up several buttons?)
+				AudioAreaHolder holder = mAudioAreaHolder.moveTo(mAudioAreas, mAudioAreaIndex.getResult(0));
+				initialisePlaybackButton(mTouchPoint);
+				mImageView.setDragCallback(mPlaybackDragCallback);
+
+				// play from our local copy if we've downloaded this track before; otherwise, download (and cache) it first
+				String cachedAudioPath = mAudioFileCache.get(holder.getSoundCloudId());
+				if (cachedAudioPath != null) {
+					streamAudio(cachedAudioPath, holder.getSoundCloudId());
+				} else {
+					mPendingAudioTrackId = holder.getSoundCloudId();
+					new SoundCloudUrlFetcherTask(PaperChainsActivity.this, sSoundCloudPlayerApiWrapper,
+							mStreamUrlCache).execute(holder.getSoundCloudId());
 				}
 			}
-		}
-
-		// remove a rect and re-enable scribbling when touching outside in add mode
-		if (!rectTouched) {
+		} else {
+			// remove a rect and re-enable scribbling when touching outside in add mode
 			switch (mCurrentMode) {
 				case MODE_ADD:
 					resetRecordingInterface();
@@ -482,7 +786,7 @@ public class PaperChainsActivity extends DecoderActivity {
 		}
 	}
 
-	private void processScribble(Path scribble) {
+	private void processScribble(ScribbleStroke scribble) {
 		try {
 			// the file we're given via createTempFile is unplayable, but the name creation routine is useful...
 			File outputFile = File.createTempFile(getString(R.string.app_name), ".mp4", getCacheDir());
@@ -490,7 +794,7 @@ public class PaperChainsActivity extends DecoderActivity {
 			if (outputFile.delete()) {
 				// get the bounding box and add to our list
 				RectF scribbleBox = new RectF();
-				scribble.computeBounds(scribbleBox, true);
+				scribble.getBounds(scribbleBox);
 				Rect audioArea = new Rect();
 				scribbleBox.roundOut(audioArea);
 				int scribbleWidth = Math.round(getResources().getDimensionPixelSize(R.dimen.scribble_stroke_width) /
@@ -499,16 +803,16 @@ public class PaperChainsActivity extends DecoderActivity {
 
 				// initialise recording
 				resetRecordingInterface();
-				mAudioRecorder = AudioRecorder.build(PaperChainsActivity.this, outputFilePath);
+				mAudioRecorder = AudioRecorder.build(PaperChainsActivity.this, outputFilePath, getRecordingProfile());
+				mAudioRecorder.prepare(); // set up while the buttons animate in, so recording starts immediately
 
 				mCurrentAudioRect = audioArea;
 				mImageView.addAudioAreaRect(audioArea);
 				mImageView.setScribbleEnabled(false);
 
 				// position the recording buttons
-				PointF centrePoint = mImageView.imagePointToScreenPoint(new Point(audioArea.centerX(), audioArea
-						.centerY()));
-				initialiseRecordingButtons(centrePoint);
+				mImageView.imagePointToScreenPoint(audioArea.centerX(), audioArea.centerY(), mTouchPoint);
+				initialiseRecordingButtons(mTouchPoint);
 			} else {
 				Toast.makeText(PaperChainsActivity.this, getString(R.string.audio_recording_setup_error), Toast
 						.LENGTH_SHORT).show();
@@ -535,6 +839,7 @@ public class PaperChainsActivity extends DecoderActivity {
 							mImageView.setClickable(false);
 							mRecordButton.setRecorder(mAudioRecorder);
 							mRecordButton.setImageResource(R.drawable.ic_pause_white_24dp);
+							updateRecordingSizeEstimate(); // the device may not support the format we requested
 						}
 
 						@Override
@@ -584,7 +889,20 @@ public class PaperChainsActivity extends DecoderActivity {
 					mPlayButton.setImageResource(R.drawable.ic_pause_white_24dp);
 				}
 			} else if (mAudioRecorder != null && mAudioRecorder.isPaused()) {
-				streamAudio(mAudioRecorder.getRecordFileName());
+				// the recorded segments are joined the first time they're needed (i.e., here, or when saving)
+				mPlayButton.setImageResource(R.drawable.ic_refresh_white_24dp);
+				mPlayButton.startAnimation(mRotateAnimation);
+				mAudioRecorder.merge(new AudioRecorder.OnMergeListener() {
+					@Override
+					public void onMerged(String recordFileName) {
+						streamAudio(recordFileName);
+					}
+
+					@Override
+					public void onException(Exception e) {
+						streamAudioLoadFailed(R.string.audio_recording_merge_error);
+					}
+				});
 			}
 		}
 	};
@@ -621,27 +939,44 @@ public class PaperChainsActivity extends DecoderActivity {
 	private void saveAudio() {
 		mSaveButton.setClickable(false); // don't allow clicks regardless of status
 
-		String accessToken = getSoundCloudAccessToken();
+		final String accessToken = getSoundCloudAccessToken();
 		if (TextUtils.isEmpty(accessToken)) {
 			// TODO: if they *do* have SoundCloud installed, use the in-app token method
 			startActivityForResult(new Intent(PaperChainsActivity.this, SoundCloudLoginActivity.class),
 					SOUNDCLOUD_LOGIN_RESULT);
 		} else {
-			animateRecordingInterface(-1, mSaveButton); // -1 = animate in
-			new Handler().postDelayed(new Runnable() {
+			mSaveButton.startAnimation(mRotateAnimation);
+			final AudioRecorder audioRecorder = mAudioRecorder;
+			audioRecorder.merge(new AudioRecorder.OnMergeListener() {
 				@Override
-				public void run() {
-					mSaveButton.setImageResource(R.drawable.ic_refresh_white_24dp);
-					mSaveButton.startAnimation(mRotateAnimation);
+				public void onMerged(String recordFileName) {
+					if (audioRecorder == mAudioRecorder) { // may have been reset while merging
+						mSaveButton.clearAnimation();
+						queueAudioUpload(recordFileName, accessToken);
+					}
 				}
-			}, BUTTON_ANIMATION_DURATION); // delayed so that the rotation doesn't interfere with the inwards animation
 
-			new SoundCloudUploadTask(PaperChainsActivity.this, sSoundCloudUploaderApiWrapper, new Token(accessToken,
-					null, Token.SCOPE_NON_EXPIRING), mPageId, new Rect(mCurrentAudioRect)).execute(mAudioRecorder
-					.getRecordFileName());
+				@Override
+				public void onException(Exception e) {
+					if (audioRecorder == mAudioRecorder) {
+						audioSaveFailed(R.string.audio_recording_merge_error);
+					}
+				}
+			});
 		}
 	}
 
+	private void queueAudioUpload(String recordFileName, String accessToken) {
+		// queue the upload and carry on - the area will be added to the page once the upload completes
+		SoundCloudUploadQueue.Upload upload = SoundCloudUploadQueue.getInstance(PaperChainsActivity.this).add
+				(recordFileName, mPageId, imageRectToGridRect(mCurrentAudioRect), accessToken);
+		mPendingUploadRects.put(upload.id, mCurrentAudioRect);
+		mCurrentAudioRect = null; // so that it stays visible when resetting
+
+		animateRecordingInterface(-1, mSaveButton); // -1 = animate in
+		delayedResetRecordingInterface();
+	}
+
 	public void audioSaveFailed(int reason) {
 		mSaveButton.clearAnimation();
 		mSaveButton.setImageResource(R.drawable.ic_done_white_24dp);
@@ -651,59 +986,39 @@ public class PaperChainsActivity extends DecoderActivity {
 		Toast.makeText(PaperChainsActivity.this, getString(messageId), Toast.LENGTH_SHORT).show();
 	}
 
-	public void audioSaveCompleted(final Rect audioRect, final long trackId) {
+	private Rect imageRectToGridRect(Rect imageRect) {
 		// convert back to grid-based coordinates
-		final PointF rectLeftTop = QRImageParser.getGridPosition(mImageParameters, new PointF(audioRect.left,
-				audioRect.top));
-		final PointF rectRightBottom = QRImageParser.getGridPosition(mImageParameters, new PointF(audioRect.right,
-				audioRect.bottom));
+		float[] points = { imageRect.left, imageRect.top, imageRect.right, imageRect.bottom };
+		mGridTransform.imageToGrid(points);
 
 		// account for image rotation/inversion by making sure to use the min/max values of each coordinate
-		int left = Math.round(rectLeftTop.x);
-		int top = Math.round(rectLeftTop.y);
-		int right = Math.round(rectRightBottom.x);
-		int bottom = Math.round(rectRightBottom.y);
-		final int leftmost = Math.min(left, right);
-		final int topmost = Math.min(top, bottom);
-		final int rightmost = Math.max(left, right);
-		final int bottommost = Math.max(top, bottom);
-
-		RequestParams params = new RequestParams("newaudio", 1); // 1 reserved for possible future use as box ID
-		params.put("left", leftmost);
-		params.put("top", topmost);
-		params.put("right", rightmost);
-		params.put("bottom", bottommost);
-		params.put("soundCloudId", trackId);
-		params.put("pageId", mPageId);
-
-		// update on the server
-		new AsyncHttpClient().get(CODE_SERVER_URL, params, new JsonHttpResponseHandler() {
-			@Override
-			public void onSuccess(int statusCode, Header[] headers, JSONObject response) {
-				try {
-					if ("ok".equals(response.getString("status"))) {
-						AudioAreaHolder holder = new AudioAreaHolder(trackId, new Rect(leftmost, topmost, rightmost,
-								bottommost));
-						holder.setImageRect(new Rect(audioRect));
-						mAudioAreas.add(holder);
-						mImageView.addAudioAreaRect(holder.imageRect);
+		int left = Math.round(points[0]);
+		int top = Math.round(points[1]);
+		int right = Math.round(points[2]);
+		int bottom = Math.round(points[3]);
+		return new Rect(Math.min(left, right), Math.min(top, bottom), Math.max(left, right), Math.max(top, bottom));
+	}
 
-						mSaveButton.clearAnimation();
-						mSaveButton.setImageResource(R.drawable.ic_done_white_24dp);
-						delayedResetRecordingInterface();
-					} else {
-						audioSaveFailed(R.string.hint_audio_save_failed);
-					}
-				} catch (JSONException e) {
-					audioSaveFailed(R.string.hint_audio_save_failed);
-				}
+	private void audioSaveCompleted(SoundCloudUploadQueue.Upload upload, long trackId) {
+		// nothing to show if this recording is not on the page currently being displayed
+		Rect imageRect = mPendingUploadRects.remove(upload.id);
+		if (imageRect == null) {
+			if (!mImageParsed || !upload.pageId.equals(mPageId)) {
+				return;
 			}
+			float[] points = { upload.gridRect.left, upload.gridRect.top, upload.gridRect.right, upload.gridRect
+					.bottom };
+			mGridTransform.gridToImage(points);
+			imageRect = new Rect((int) Math.floor(Math.min(points[0], points[2])), (int) Math.floor(Math.min
+					(points[1], points[3])), (int) Math.ceil(Math.max(points[0], points[2])), (int) Math.ceil(Math.max
+					(points[1], points[3])));
+			mImageView.addAudioAreaRect(imageRect);
+		} // otherwise the view is already showing this area
 
-			@Override
-			public void onFailure(int statusCode, Header[] headers, Throwable throwable, JSONObject errorResponse) {
-				audioSaveFailed(R.string.hint_audio_save_failed);
-			}
-		});
+		Rect gridRect = upload.gridRect;
+		mAudioAreas.setImageRect(mAudioAreas.add(trackId, gridRect.left, gridRect.top, gridRect.right, gridRect
+				.bottom), imageRect);
+		mAudioAreaIndex.add(imageRect);
 	}
 
 	private void initialisePlaybackButton(PointF centrePoint) {
@@ -738,6 +1053,31 @@ public class PaperChainsActivity extends DecoderActivity {
 		if (actionBar != null) {
 			actionBar.setTitle(getString(R.string.title_activity_record));
 		}
+		updateRecordingSizeEstimate();
+	}
+
+	private void updateRecordingSizeEstimate() {
+		ActionBar actionBar = getSupportActionBar();
+		if (actionBar != null && mAudioRecorder != null) {
+			actionBar.setSubtitle(getString(R.string.audio_recording_size_estimate, mAudioRecorder
+					.getEstimatedBytesPerSecond() / 1024f));
+		}
+	}
+
+	private AudioRecorder.MediaRecorderConfig getRecordingProfile() {
+		// recordings are always speech, so mono is enough; on mobile (or offline) we reduce the upload size further
+		ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+		if (networkInfo != null && networkInfo.isConnected()) {
+			switch (networkInfo.getType()) {
+				case ConnectivityManager.TYPE_WIFI:
+				case ConnectivityManager.TYPE_ETHERNET:
+					return AudioRecorder.MediaRecorderConfig.SPEECH;
+				default:
+					break;
+			}
+		}
+		return AudioRecorder.MediaRecorderConfig.LOW_BANDWIDTH;
 	}
 
 	private RelativeLayout.LayoutParams getLayoutParamsForButtonPosition(PointF buttonPosition, int buttonWidth, int
@@ -838,6 +1178,7 @@ public class PaperChainsActivity extends DecoderActivity {
 			if (mAudioRecorder.isRecording()) {
 				mAudioRecorder.pause(null);
 			}
+			mAudioRecorder.release(); // e.g., if prepared but cancelled before recording
 		}
 		mAudioRecorder = null; // TODO: delete audio file (if it exists)?
 
@@ -858,11 +1199,18 @@ public class PaperChainsActivity extends DecoderActivity {
 		ActionBar actionBar = getSupportActionBar();
 		if (actionBar != null) {
 			actionBar.setTitle(getString(R.string.title_activity_add));
+			actionBar.setSubtitle(null);
 		}
 	}
 
-	public void streamAudioLoadCompleted(String url) {
-		streamAudio(url);
+	public void streamAudioLoadCompleted(long trackId, String url) {
+		if (trackId != mPendingAudioTrackId) {
+			return; // playback has been cancelled or another area selected
+		}
+
+		// start playing straight away, and cache a local copy alongside so that replaying doesn't need the network
+		streamAudio(url, trackId);
+		mAudioFileCache.download(trackId, url, null);
 	}
 
 	public void streamAudioLoadFailed(int reason) {
@@ -873,6 +1221,16 @@ public class PaperChainsActivity extends DecoderActivity {
 	}
 
 	private void streamAudio(String audioPath) {
+		streamAudio(audioPath, -1);
+	}
+
+	/**
+	 * Plays audio from a url or file
+	 *
+	 * @param audioPath the url or file to play
+	 * @param trackId   the SoundCloud track that audioPath was cached for, or -1 if it is not a cached track
+	 */
+	private void streamAudio(String audioPath, final long trackId) {
 		resetAudioPlayer();
 
 		mPlayButton.setVisibility(View.VISIBLE); // undo invisible by resetAudioPlayer();
@@ -910,17 +1268,28 @@ public class PaperChainsActivity extends DecoderActivity {
 			mAudioPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
 				@Override
 				public boolean onError(MediaPlayer mp, int what, int extra) {
-					streamAudioLoadFailed(R.string.hint_soundcloud_load_failed);
+					cachedAudioFailed(trackId);
 					return true;
 				}
 			});
 			mAudioPlayer.prepareAsync();
 		} catch (IOException e) {
-			streamAudioLoadFailed(R.string.hint_soundcloud_load_failed);
+			cachedAudioFailed(trackId);
+		}
+	}
+
+	private void cachedAudioFailed(long trackId) {
+		if (trackId >= 0) {
+			// the cached stream url may have expired (or the cached file may be damaged) - fetch both again next time
+			// (neither waits for disk access, so both are safe to call here)
+			mStreamUrlCache.remove(trackId);
+			mAudioFileCache.remove(trackId);
 		}
+		streamAudioLoadFailed(R.string.hint_soundcloud_load_failed);
 	}
 
 	private void resetAudioPlayer() {
+		mPendingAudioTrackId = -1;
 		mPlayButton.clearAnimation();
 		mPlayButton.setVisibility(View.INVISIBLE);
 		if (mAudioPlayer != null) {
@@ -16,6 +16,7 @@
 
 package ac.robinson.paperchains;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -23,10 +24,14 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Picture;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
@@ -34,21 +39,42 @@ import android.view.View;
 import android.view.ViewConfiguration;
 
 import com.sonyericsson.zoom.AspectQuotient;
+import com.sonyericsson.zoom.ChangeNotifier;
 import com.sonyericsson.zoom.ZoomState;
 
-import java.util.ArrayList;
-import java.util.Observable;
-import java.util.Observer;
-
-public class PaperChainsView extends View implements Observer {
+public class PaperChainsView extends View implements ChangeNotifier.ChangeListener {
 
 	private static final int AUDIO_RECT_ALPHA = 100;
 	private static final int SCRIBBLE_ALPHA = 180;
-
-	private Bitmap mBitmap;
-
-	private final ArrayList<Rect> mAudioAreas = new ArrayList<>();
-	private final Path mScribblePath = new Path();
+	private static final float SCRIBBLE_TOLERANCE = 0.5f; // maximum scribble simplification error, in screen pixels
+	private static final long FRAME_STATS_OVERLAY_INTERVAL = 500; // ms between overlay summary updates
+
+	private Bitmap mBitmap; // only kept until mTiledImage is built, so we don't hold two full-size copies of the image
+	private int mImageWidth; // the size of the image being displayed (the bitmap may be downsampled)
+	private int mImageHeight;
+	private int mImageGeneration; // incremented for each new image, so that tiling results for old images are ignored
+	private TiledImage mTiledImage; // null until built - mBitmap is drawn directly until then
+	private final BitmapPool mBitmapPool = new BitmapPool(0); // the budget is set by our owner - see setBitmapPoolMaxBytes
+	private Bitmap.Config mTileConfig = Bitmap.Config.RGB_565; // printed paper has no need for an alpha channel
+
+	private final AudioAreaIndex mAudioAreas = new AudioAreaIndex();
+	private Picture mAudioAreaPicture; // all audio areas, recorded in image coordinates; null when out of date
+	private final ScribbleStroke mScribbleStroke = new ScribbleStroke();
+	private final Path mScribblePath = new Path(); // only used when the scribble layer is not available
+
+	// the current scribble is drawn incrementally to an offscreen layer (in view coordinates) so that each new segment
+	// only requires redrawing its own bounds; the layer is opaque, and composited at SCRIBBLE_ALPHA
+	private Bitmap mScribbleLayer;
+	private Canvas mScribbleLayerCanvas;
+	private final Paint mScribbleLayerPaint = new Paint();
+	private final Paint mScribbleCompositePaint = new Paint();
+	private boolean mScribbleLayerValid; // false if the zoom/pan has changed since the scribble was started
+	private float mScribbleLayerLeftPos;
+	private float mScribbleLayerTopPos;
+	private float mScribbleLayerScaleFactor;
+	private float mLastScribbleX;
+	private float mLastScribbleY;
+	private final Rect mScribbleDirtyRect = new Rect();
 
 	private DragCallback mDragCallback = null;
 	private ScribbleCallback mScribbleCallback = null;
@@ -61,9 +87,21 @@ public class PaperChainsView extends View implements Observer {
 
 	private final Rect mRectSrc = new Rect();
 	private final Rect mRectDst = new Rect();
+	private final Rect mRectBitmapSrc = new Rect();
+	private final Rect mAudioAreaRect = new Rect();
 
 	private final AspectQuotient mAspectQuotient = new AspectQuotient();
 	private ZoomState mZoomState;
+	private boolean mRedrawPending; // true if we have invalidated in response to a zoom change, but not yet drawn
+
+	// performance instrumentation - the overlay is only shown when enabled (e.g., in debug builds)
+	private final FrameStats mFrameStats = new FrameStats();
+	private long mPendingInputTime; // the time of the earliest touch event not yet followed by a frame; 0 if none
+	private boolean mShowFrameStats;
+	private final Paint mFrameStatsPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint mFrameStatsBackgroundPaint = new Paint();
+	private String[] mFrameStatsSummary;
+	private long mFrameStatsSummaryTime;
 
 	// for retrieving touch points
 	private float mTopPos = 0;
@@ -81,7 +119,7 @@ public class PaperChainsView extends View implements Observer {
 	}
 
 	public interface ScribbleCallback {
-		void scribbleCompleted(Path scribble);
+		void scribbleCompleted(ScribbleStroke scribble);
 	}
 
 	public PaperChainsView(Context context, AttributeSet attrs) {
@@ -102,27 +140,139 @@ public class PaperChainsView extends View implements Observer {
 		mScribblePaint.setStrokeCap(Paint.Cap.ROUND);
 		mScribblePaint.setStrokeJoin(Paint.Join.ROUND);
 
+		mScribbleLayerPaint.set(mScribblePaint);
+		mScribbleLayerPaint.setAlpha(255);
+		mScribbleCompositePaint.setColor(mScribblePaint.getColor()); // the layer is ALPHA_8, so this is its colour
+		mScribbleCompositePaint.setAlpha(SCRIBBLE_ALPHA);
+
 		mScaledTouchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
+
+		mFrameStatsPaint.setColor(Color.WHITE);
+		mFrameStatsPaint.setTextSize(resources.getDisplayMetrics().scaledDensity * 12);
+		mFrameStatsBackgroundPaint.setColor(Color.argb(160, 0, 0, 0));
 	}
 
 	public void setImage(Bitmap bitmap) {
+		setImage(bitmap, bitmap != null ? bitmap.getWidth() : 0, bitmap != null ? bitmap.getHeight() : 0);
+	}
+
+	/**
+	 * Sets the image to display, which may be a downsampled version of the original. All image coordinates (e.g., audio
+	 * areas, touch points) are relative to the original image size.
+	 *
+	 * @param bitmap      the image to display
+	 * @param imageWidth  the width of the original image
+	 * @param imageHeight the height of the original image
+	 */
+	public void setImage(Bitmap bitmap, int imageWidth, int imageHeight) {
 		mBitmap = bitmap;
+		mImageWidth = imageWidth;
+		mImageHeight = imageHeight;
+		mImageGeneration++;
+		mAudioAreaPicture = null; // recorded at the previous image's size
+
+		if (mTiledImage != null) {
+			mTiledImage.release(mBitmapPool); // so that the next image's tiles can reuse these bitmaps
+			mTiledImage = null;
+		}
 
 		if (mBitmap != null) {
-			mAspectQuotient.updateAspectQuotient(getWidth(), getHeight(), mBitmap.getWidth(), mBitmap.getHeight());
-			mAspectQuotient.notifyObservers();
+			if (!isInEditMode()) {
+				buildTiledImage(mBitmap, imageWidth, imageHeight, mTileConfig);
+			}
+
+			mAspectQuotient.updateAspectQuotient(getWidth(), getHeight(), mImageWidth, mImageHeight);
+			mAspectQuotient.notifyListeners();
 		}
 
 		invalidate();
 	}
 
+	/**
+	 * Sets whether to display the image at a reduced colour depth (RGB_565, the default) to halve its memory use, or at
+	 * full colour depth (ARGB_8888). Takes effect from the next call to setImage.
+	 */
+	public void setReducedPixelFormatEnabled(boolean enabled) {
+		mTileConfig = enabled ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+	}
+
+	/**
+	 * @return the number of bytes of pixel data currently held by this view for displaying its image (including the
+	 * bitmap passed to setImage, which is shared with the caller, until the image has been tiled)
+	 */
+	public int getPixelByteCount() {
+		int byteCount = mBitmap != null ? BitmapPool.getByteCount(mBitmap) : 0;
+		if (mTiledImage != null) {
+			byteCount += mTiledImage.getByteCount();
+		}
+		return byteCount;
+	}
+
+	/**
+	 * @return the number of bytes of pixel data held in this view's pool of unused bitmaps
+	 */
+	public int getPooledPixelByteCount() {
+		return mBitmapPool.getByteCount();
+	}
+
+	/**
+	 * Sets the maximum number of bytes to keep in this view's pool of unused bitmaps, releasing any over the limit
+	 */
+	public void setBitmapPoolMaxBytes(int maxBytes) {
+		mBitmapPool.setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * Releases any unused bitmaps (e.g., when memory is low)
+	 */
+	public void clearBitmapPool() {
+		mBitmapPool.clear();
+	}
+
+	private boolean hasImage() {
+		return mBitmap != null || mTiledImage != null;
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private void buildTiledImage(final Bitmap bitmap, final int imageWidth, final int imageHeight, final Bitmap.Config
+			tileConfig) {
+		final int imageGeneration = mImageGeneration;
+		AsyncTask<Void, Void, TiledImage> task = new AsyncTask<Void, Void, TiledImage>() {
+			@Override
+			protected TiledImage doInBackground(Void... params) {
+				return TiledImage.build(bitmap, imageWidth, imageHeight, mBitmapPool, tileConfig);
+			}
+
+			@Override
+			protected void onPostExecute(TiledImage tiledImage) {
+				if (tiledImage == null) {
+					return; // not enough memory - we'll just keep drawing the original bitmap
+				}
+				if (imageGeneration != mImageGeneration) {
+					tiledImage.release(mBitmapPool); // the image has changed since we started
+					return;
+				}
+				mTiledImage = tiledImage;
+				mBitmap = null; // level 0 of the tiles has the same resolution, so we no longer need the original
+				invalidate();
+			}
+		};
+
+		// tiling can take a while, so shouldn't hold up the default serial executor's tasks (e.g., network requests)
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+		} else {
+			task.execute(); // tasks are already run in parallel on older versions
+		}
+	}
+
 	public void setZoomState(ZoomState state) {
 		if (mZoomState != null) {
-			mZoomState.deleteObserver(this);
+			mZoomState.removeListener(this);
 		}
 
 		mZoomState = state;
-		mZoomState.addObserver(this);
+		mZoomState.addListener(this);
 
 		invalidate();
 	}
@@ -135,10 +285,22 @@ public class PaperChainsView extends View implements Observer {
 	 * Converts a touch on screen to a point in the image coordinates
 	 *
 	 * @param touchPoint the touch point
-	 * @return touchPoint in the image coordinates
+	 * @param out        the point to write touchPoint in the image coordinates to
+	 */
+	public void screenPointToImagePoint(PointF touchPoint, Point out) {
+		out.set((int) screenXToImageX(touchPoint.x), (int) screenYToImageY(touchPoint.y));
+	}
+
+	/**
+	 * Converts several points on screen to image coordinates at once
+	 *
+	 * @param points the points to convert, packed as x, y pairs (converted in place)
 	 */
-	public Point screenPointToImagePoint(PointF touchPoint) {
-		return new Point((int) screenXToImageX(touchPoint.x), (int) screenYToImageY(touchPoint.y));
+	public void screenPointsToImagePoints(float[] points) {
+		for (int i = 0; i + 1 < points.length; i += 2) {
+			points[i] = screenXToImageX(points[i]);
+			points[i + 1] = screenYToImageY(points[i + 1]);
+		}
 	}
 
 	private float screenXToImageX(float screenX) {
@@ -150,27 +312,56 @@ public class PaperChainsView extends View implements Observer {
 	}
 
 	/**
-	 * Converts a touch on the image to a point on screen
+	 * Converts a point on the image to a point on screen
 	 *
-	 * @param imagePoint the image point
-	 * @return imagePoint in the screen coordinates
+	 * @param imageX the x coordinate of the image point
+	 * @param imageY the y coordinate of the image point
+	 * @param out    the point to write the screen coordinates to
 	 */
-	public PointF imagePointToScreenPoint(Point imagePoint) {
-		return new PointF((imagePoint.x * mScaleFactorX) + mLeftPos, (imagePoint.y * mScaleFactorY) + mTopPos);
+	public void imagePointToScreenPoint(float imageX, float imageY, PointF out) {
+		out.set((imageX * mScaleFactorX) + mLeftPos, (imageY * mScaleFactorY) + mTopPos);
+	}
+
+	/**
+	 * Converts several points on the image to screen coordinates at once
+	 *
+	 * @param points the points to convert, packed as x, y pairs (converted in place)
+	 */
+	public void imagePointsToScreenPoints(float[] points) {
+		for (int i = 0; i + 1 < points.length; i += 2) {
+			points[i] = (points[i] * mScaleFactorX) + mLeftPos;
+			points[i + 1] = (points[i + 1] * mScaleFactorY) + mTopPos;
+		}
+	}
+
+	/**
+	 * Gets the centre of the currently visible part of the image
+	 *
+	 * @param out the point to write the centre (in image coordinates) to
+	 */
+	public void getVisibleImageCentre(PointF out) {
+		if (!hasImage() || mZoomState == null) {
+			out.set(0, 0);
+			return;
+		}
+		out.set(mZoomState.getPanX() * mImageWidth, mZoomState.getPanY() * mImageHeight);
 	}
 
 	public void addAudioAreaRect(Rect rect) {
 		mAudioAreas.add(rect);
+		mAudioAreaPicture = null;
 		invalidate();
 	}
 
 	public void removeAudioAreaRect(Rect rect) {
-		mAudioAreas.remove(rect);
+		mAudioAreas.remove(mAudioAreas.find(rect));
+		mAudioAreaPicture = null;
 		invalidate();
 	}
 
 	public void clearAudioAreaRects() {
 		mAudioAreas.clear();
+		mAudioAreaPicture = null;
 	}
 
 	public void setDragCallback(DragCallback callback) {
@@ -184,7 +375,8 @@ public class PaperChainsView extends View implements Observer {
 	public void setScribbleEnabled(boolean enabled) {
 		mScribbleEnabled = enabled;
 		if (!enabled) {
-			mScribblePath.reset();
+			mScribbleStroke.clear();
+			mScribbleLayerValid = false;
 		}
 		invalidate();
 	}
@@ -194,31 +386,58 @@ public class PaperChainsView extends View implements Observer {
 		invalidate();
 	}
 
+	/**
+	 * @return the performance statistics recorded while drawing this view
+	 */
+	public FrameStats getFrameStats() {
+		return mFrameStats;
+	}
+
+	/**
+	 * Sets whether to draw a summary of the recorded performance statistics over the image
+	 */
+	public void setFrameStatsOverlayEnabled(boolean enabled) {
+		mShowFrameStats = enabled;
+		mFrameStatsSummary = null;
+		invalidate();
+	}
+
+	@Override
+	public boolean dispatchTouchEvent(@NonNull MotionEvent event) {
+		// touches are mostly handled by an OnTouchListener, so we note their timing here rather than in onTouchEvent
+		if (mPendingInputTime == 0) {
+			mPendingInputTime = event.getHistorySize() > 0 ? event.getHistoricalEventTime(0) : event.getEventTime();
+		}
+		return super.dispatchTouchEvent(event);
+	}
+
 	@Override
 	public boolean onTouchEvent(@NonNull MotionEvent event) {
 		if (mScribbleEnabled && mScribbleCallback != null) {
 			// handle scribbling on the image
-			final float x = screenXToImageX(event.getX());
-			final float y = screenYToImageY(event.getY());
-
 			switch (event.getAction()) {
 				case MotionEvent.ACTION_DOWN:
-					mScribblePath.reset();
-					mScribblePath.moveTo(x, y);
+					// simplify to within a fraction of a screen pixel at the current zoom level
+					mScribbleStroke.reset(screenXToImageX(event.getX()), screenYToImageY(event.getY()),
+							SCRIBBLE_TOLERANCE / mScaleFactorX);
+					startScribbleLayer(event.getX(), event.getY());
+					invalidate();
 					break;
 
 				case MotionEvent.ACTION_MOVE:
-					mScribblePath.lineTo(x, y);
+					addScribbleEvent(event);
 					break;
 
 				case MotionEvent.ACTION_UP:
-					mScribblePath.lineTo(x, y);
-					mScribbleCallback.scribbleCompleted(mScribblePath);
+					addScribbleEvent(event);
+					mScribbleStroke.finish();
+					mScribbleCallback.scribbleCompleted(mScribbleStroke);
 					break;
 
 				default:
 					break;
 			}
+			return true; // invalidation is handled above
 		} else if (isClickable()) {
 			// handle click so we don't click after moving beyond the touch slop
 			switch (event.getAction()) {
@@ -252,6 +471,74 @@ public class PaperChainsView extends View implements Observer {
 		return true; //super.onTouchEvent(event);
 	}
 
+	private void startScribbleLayer(float viewX, float viewY) {
+		final int width = getWidth();
+		final int height = getHeight();
+		if (width <= 0 || height <= 0) {
+			mScribbleLayerValid = false;
+			return;
+		}
+		if (mScribbleLayer == null || mScribbleLayer.getWidth() != width || mScribbleLayer.getHeight() != height) {
+			try {
+				mScribbleLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+				mScribbleLayerCanvas = new Canvas(mScribbleLayer);
+			} catch (OutOfMemoryError e) {
+				mScribbleLayer = null;
+				mScribbleLayerCanvas = null;
+				mScribbleLayerValid = false;
+				return; // we'll just draw the path directly
+			}
+		} else {
+			mScribbleLayer.eraseColor(Color.TRANSPARENT);
+		}
+
+		// the stroke width is specified in image coordinates, but the layer is in view coordinates
+		mScribbleLayerLeftPos = mLeftPos;
+		mScribbleLayerTopPos = mTopPos;
+		mScribbleLayerScaleFactor = mScaleFactorX;
+		mScribbleLayerPaint.setStrokeWidth(mScribblePaint.getStrokeWidth() * mScaleFactorX);
+		mScribbleLayerCanvas.drawPoint(viewX, viewY, mScribbleLayerPaint);
+		mScribbleLayerValid = true;
+
+		mLastScribbleX = viewX;
+		mLastScribbleY = viewY;
+	}
+
+	private void addScribbleEvent(MotionEvent event) {
+		// touch events are batched, so include all of the intermediate points for a more accurate stroke
+		mScribbleDirtyRect.setEmpty();
+		final int historySize = event.getHistorySize();
+		for (int i = 0; i < historySize; i++) {
+			addScribblePoint(event.getHistoricalX(i), event.getHistoricalY(i));
+		}
+		addScribblePoint(event.getX(), event.getY());
+
+		if (mScribbleLayerValid) {
+			invalidate(mScribbleDirtyRect); // only redraw the area covered by the new segments
+		} else {
+			invalidate();
+		}
+	}
+
+	private void addScribblePoint(float viewX, float viewY) {
+		mScribbleStroke.add(screenXToImageX(viewX), screenYToImageY(viewY));
+		if (!mScribbleLayerValid) {
+			return;
+		}
+
+		// the layer is only for display, so it gets every point (this is cheap, as the layer is never redrawn)
+		mScribbleLayerCanvas.drawLine(mLastScribbleX, mLastScribbleY, viewX, viewY, mScribbleLayerPaint);
+
+		// include the stroke either side of the segment
+		final float inset = mScribbleLayerPaint.getStrokeWidth() / 2 + 1; // + 1 for anti-aliasing
+		mScribbleDirtyRect.union((int) Math.floor(Math.min(mLastScribbleX, viewX) - inset), (int) Math.floor(Math.min
+				(mLastScribbleY, viewY) - inset), (int) Math.ceil(Math.max(mLastScribbleX, viewX) + inset), (int) Math
+				.ceil(Math.max(mLastScribbleY, viewY) + inset));
+
+		mLastScribbleX = viewX;
+		mLastScribbleY = viewY;
+	}
+
 	/**
 	 * Apply the current zoom and scale to the given canvas
 	 *
@@ -262,17 +549,17 @@ public class PaperChainsView extends View implements Observer {
 
 		final int viewWidth = getWidth();
 		final int viewHeight = getHeight();
-		final int bitmapWidth = mBitmap.getWidth();
-		final int bitmapHeight = mBitmap.getHeight();
+		final int imageWidth = mImageWidth;
+		final int imageHeight = mImageHeight;
 
 		final float panX = mZoomState.getPanX();
 		final float panY = mZoomState.getPanY();
-		final float zoomX = mZoomState.getZoomX(aspectQuotient) * viewWidth / bitmapWidth;
-		final float zoomY = mZoomState.getZoomY(aspectQuotient) * viewHeight / bitmapHeight;
+		final float zoomX = mZoomState.getZoomX(aspectQuotient) * viewWidth / imageWidth;
+		final float zoomY = mZoomState.getZoomY(aspectQuotient) * viewHeight / imageHeight;
 
 		// set up the source and destination rectangles
-		mRectSrc.left = (int) (panX * bitmapWidth - viewWidth / (zoomX * 2));
-		mRectSrc.top = (int) (panY * bitmapHeight - viewHeight / (zoomY * 2));
+		mRectSrc.left = (int) (panX * imageWidth - viewWidth / (zoomX * 2));
+		mRectSrc.top = (int) (panY * imageHeight - viewHeight / (zoomY * 2));
 		mRectSrc.right = (int) (mRectSrc.left + viewWidth / zoomX);
 		mRectSrc.bottom = (int) (mRectSrc.top + viewHeight / zoomY);
 		mRectDst.left = getPaddingLeft();
@@ -285,27 +572,27 @@ public class PaperChainsView extends View implements Observer {
 			mRectDst.left += -mRectSrc.left * zoomX;
 			mRectSrc.left = 0;
 		}
-		if (mRectSrc.right > bitmapWidth) {
-			mRectDst.right -= (mRectSrc.right - bitmapWidth) * zoomX;
-			mRectSrc.right = bitmapWidth;
+		if (mRectSrc.right > imageWidth) {
+			mRectDst.right -= (mRectSrc.right - imageWidth) * zoomX;
+			mRectSrc.right = imageWidth;
 		}
 		if (mRectSrc.top < 0) {
 			mRectDst.top += -mRectSrc.top * zoomY;
 			mRectSrc.top = 0;
 		}
-		if (mRectSrc.bottom > bitmapHeight) {
-			mRectDst.bottom -= (mRectSrc.bottom - bitmapHeight) * zoomY;
-			mRectSrc.bottom = bitmapHeight;
+		if (mRectSrc.bottom > imageHeight) {
+			mRectDst.bottom -= (mRectSrc.bottom - imageHeight) * zoomY;
+			mRectSrc.bottom = imageHeight;
 		}
 
 		// scale the canvas so the visible area is the zoomed part of the map
 		final float leftPos = (-mRectSrc.left * zoomX) + mRectDst.left;
 		final float topPos = (-mRectSrc.top * zoomY) + mRectDst.top;
-		final float rightPos = ((bitmapWidth - mRectSrc.right) * zoomX) + mRectDst.right;
-		final float bottomPos = ((bitmapHeight - mRectSrc.bottom) * zoomY) + mRectDst.bottom;
+		final float rightPos = ((imageWidth - mRectSrc.right) * zoomX) + mRectDst.right;
+		final float bottomPos = ((imageHeight - mRectSrc.bottom) * zoomY) + mRectDst.bottom;
 
-		final float scaleFactorX = (rightPos - leftPos) / bitmapWidth;
-		final float scaleFactorY = (bottomPos - topPos) / bitmapHeight;
+		final float scaleFactorX = (rightPos - leftPos) / imageWidth;
+		final float scaleFactorY = (bottomPos - topPos) / imageHeight;
 
 		canvas.translate(leftPos, topPos);
 		canvas.scale(scaleFactorX, scaleFactorY, 0, 0);
@@ -317,53 +604,140 @@ public class PaperChainsView extends View implements Observer {
 		mScaleFactorY = scaleFactorY;
 	}
 
-	private boolean isVisible(Canvas canvas, Rect r) {
-		return !canvas.quickReject(r.left, r.top, r.right, r.bottom, Canvas.EdgeType.BW);
-	}
-
 	@Override
 	protected void onDraw(Canvas canvas) {
+		final long drawStartTime = System.nanoTime();
 		super.onDraw(canvas);
+		mRedrawPending = false;
 		canvas.save();
 
-		if (mBitmap != null && mZoomState != null) {
-			canvas.drawBitmap(mBitmap, mRectSrc, mRectDst, mBitmapPaint);
+		if (mTiledImage != null && mZoomState != null) {
+			applyZoomAndScale(canvas);
+
+			// only draw the visible tiles, at the resolution closest to the current zoom level
+			mTiledImage.draw(canvas, mRectSrc, mScaleFactorX, mBitmapPaint);
+			drawAudioAreasAndScribble(canvas);
+		} else if (mBitmap != null && mZoomState != null) {
+			if (mBitmap.getWidth() == mImageWidth && mBitmap.getHeight() == mImageHeight) {
+				canvas.drawBitmap(mBitmap, mRectSrc, mRectDst, mBitmapPaint);
+			} else {
+				// mRectSrc is in image coordinates - scale to the downsampled bitmap
+				final float bitmapScaleX = mBitmap.getWidth() / (float) mImageWidth;
+				final float bitmapScaleY = mBitmap.getHeight() / (float) mImageHeight;
+				mRectBitmapSrc.set(Math.round(mRectSrc.left * bitmapScaleX), Math.round(mRectSrc.top * bitmapScaleY),
+						Math.round(mRectSrc.right * bitmapScaleX), Math.round(mRectSrc.bottom * bitmapScaleY));
+				canvas.drawBitmap(mBitmap, mRectBitmapSrc, mRectDst, mBitmapPaint);
+			}
 
 			// zoom/scale to the correct position
 			if (!isInEditMode()) {
 				applyZoomAndScale(canvas);
 			}
 
-			// draw audio areas and current scribble
-			if (mDrawAudioAreas) {
-				for (Rect rect : mAudioAreas) {
-					if (!isVisible(canvas, rect)) {
-						continue; // don't draw rects that aren't visible
-					}
-					canvas.drawRect(rect, mAudioAreaPaint);
-				}
-			}
-			if (mScribbleEnabled) {
-				canvas.drawPath(mScribblePath, mScribblePaint);
-			}
+			drawAudioAreasAndScribble(canvas);
 		} else {
 			canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
 		}
 
 		canvas.restore();
+
+		if (isScribbleLayerCurrent()) {
+			canvas.drawBitmap(mScribbleLayer, 0, 0, mScribbleCompositePaint); // already in view coordinates
+		}
+
+		// note: when hardware accelerated this is the time taken to record the frame, rather than to render it
+		mFrameStats.recordDrawTime(System.nanoTime() - drawStartTime);
+		if (mPendingInputTime != 0) {
+			mFrameStats.recordInputLatency(SystemClock.uptimeMillis() - mPendingInputTime);
+			mPendingInputTime = 0;
+		}
+		if (mShowFrameStats) {
+			drawFrameStats(canvas);
+		}
+	}
+
+	private void drawFrameStats(Canvas canvas) {
+		// summarising requires sorting, so we don't do it every frame
+		final long now = SystemClock.uptimeMillis();
+		if (mFrameStatsSummary == null || now - mFrameStatsSummaryTime > FRAME_STATS_OVERLAY_INTERVAL) {
+			mFrameStatsSummary = mFrameStats.getSummary();
+			mFrameStatsSummaryTime = now;
+		}
+
+		final float lineHeight = mFrameStatsPaint.getFontSpacing();
+		canvas.drawRect(0, 0, getWidth(), lineHeight * (mFrameStatsSummary.length + 0.5f),
+				mFrameStatsBackgroundPaint);
+		for (int i = 0; i < mFrameStatsSummary.length; i++) {
+			canvas.drawText(mFrameStatsSummary[i], lineHeight / 2, lineHeight * (i + 1), mFrameStatsPaint);
+		}
+	}
+
+	private boolean isScribbleLayerCurrent() {
+		return mScribbleEnabled && mScribbleLayerValid && mScribbleLayerLeftPos == mLeftPos && mScribbleLayerTopPos
+				== mTopPos && mScribbleLayerScaleFactor == mScaleFactorX;
+	}
+
+	private void drawAudioAreasAndScribble(Canvas canvas) {
+		// draw audio areas and current scribble
+		if (mDrawAudioAreas) {
+			if (shouldDrawPicture(canvas)) {
+				// the areas only change occasionally, so we record them once and let the software renderer replay
+				// them (skipping any outside the clip) in a single call at every zoom level
+				if (mAudioAreaPicture == null) {
+					mAudioAreaPicture = recordAudioAreas();
+				}
+				canvas.drawPicture(mAudioAreaPicture);
+			} else {
+				// only draw rects that are visible (mRectSrc is the visible part of the image) - when hardware
+				// accelerated a picture would be copied into the display list in full every frame, so this is cheaper
+				final int visibleCount = mAudioAreas.findIntersecting(mRectSrc);
+				for (int i = 0; i < visibleCount; i++) {
+					mAudioAreas.getRect(mAudioAreas.getResult(i), mAudioAreaRect);
+					canvas.drawRect(mAudioAreaRect, mAudioAreaPaint);
+				}
+			}
+		}
+		if (mScribbleEnabled && !isScribbleLayerCurrent()) {
+			mScribbleStroke.toPath(mScribblePath);
+			canvas.drawPath(mScribblePath, mScribblePaint);
+		}
+	}
+
+	private Picture recordAudioAreas() {
+		Picture picture = new Picture();
+		Canvas pictureCanvas = picture.beginRecording(Math.max(1, mImageWidth), Math.max(1, mImageHeight));
+		final int areaCount = mAudioAreas.size();
+		for (int i = 0; i < areaCount; i++) {
+			mAudioAreas.getRect(i, mAudioAreaRect);
+			if (!mAudioAreaRect.isEmpty()) { // removed areas are left empty
+				pictureCanvas.drawRect(mAudioAreaRect, mAudioAreaPaint);
+			}
+		}
+		picture.endRecording();
+		return picture;
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static boolean shouldDrawPicture(Canvas canvas) {
+		// hardware acceleration was added in API 11 (and could not draw pictures at all until API 23)
+		return Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || !canvas.isHardwareAccelerated();
 	}
 
 	@Override
 	protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
 		super.onLayout(changed, left, top, right, bottom);
 
-		if (mBitmap != null) {
-			mAspectQuotient.updateAspectQuotient(right - left, bottom - top, mBitmap.getWidth(), mBitmap.getHeight());
-			mAspectQuotient.notifyObservers();
+		if (hasImage()) {
+			mAspectQuotient.updateAspectQuotient(right - left, bottom - top, mImageWidth, mImageHeight);
+			mAspectQuotient.notifyListeners();
 		}
 	}
 
-	public void update(Observable observable, Object data) {
-		invalidate();
+	public void onChanged(ChangeNotifier notifier, int changes) {
+		// pan and zoom can change several times per frame (e.g., while flinging), but we only need to redraw once
+		if (!mRedrawPending) {
+			mRedrawPending = true;
+			invalidate();
+		}
 	}
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.Path;
+import android.graphics.RectF;
+
+/**
+ * A scribble, simplified as it is drawn. Points are only kept where the stroke deviates from a straight line by more
+ * than a given tolerance, so that every input point lies within the tolerance of the simplified line, while long,
+ * smooth strokes need only a few points. Bounds are tracked as points are added (and include all input points).
+ */
+class ScribbleStroke {
+
+	// limits the cost of checking each new point against the points it would replace
+	private static final int MAX_RUN_LENGTH = 32;
+
+	private float[] mPoints = new float[64]; // simplified points, packed as x, y
+	private int mPointCount;
+
+	// the input points since the last simplified point, which will be replaced by a single segment if possible
+	private final float[] mRun = new float[MAX_RUN_LENGTH * 2];
+	private int mRunLength;
+
+	private float mTolerance;
+	private final RectF mBounds = new RectF();
+
+	/**
+	 * Starts a new stroke
+	 *
+	 * @param x         the x coordinate of the first point
+	 * @param y         the y coordinate of the first point
+	 * @param tolerance the maximum distance of any point from the simplified stroke
+	 */
+	public void reset(float x, float y, float tolerance) {
+		mPointCount = 0;
+		mRunLength = 0;
+		mTolerance = tolerance;
+		mBounds.set(x, y, x, y);
+		addSimplifiedPoint(x, y);
+	}
+
+	/**
+	 * Removes all points from the stroke
+	 */
+	public void clear() {
+		mPointCount = 0;
+		mRunLength = 0;
+		mBounds.setEmpty();
+	}
+
+	/**
+	 * Adds a point to the stroke
+	 */
+	public void add(float x, float y) {
+		if (mPointCount == 0) {
+			reset(x, y, mTolerance);
+			return;
+		}
+		mBounds.union(x, y);
+
+		if (mRunLength > 0) {
+			final float lastX = mRun[(mRunLength - 1) * 2];
+			final float lastY = mRun[(mRunLength - 1) * 2 + 1];
+			if (lastX == x && lastY == y) {
+				return; // nothing new
+			}
+
+			// if any point since the last simplified point is too far from a straight line to the new point, the
+			// previous point must be kept; otherwise the new point extends the current run
+			if (mRunLength >= MAX_RUN_LENGTH || !isRunWithinTolerance(x, y)) {
+				addSimplifiedPoint(lastX, lastY);
+				mRunLength = 0;
+			}
+		}
+		mRun[mRunLength * 2] = x;
+		mRun[mRunLength * 2 + 1] = y;
+		mRunLength++;
+	}
+
+	/**
+	 * Completes the stroke, keeping its final point
+	 */
+	public void finish() {
+		if (mRunLength > 0) {
+			addSimplifiedPoint(mRun[(mRunLength - 1) * 2], mRun[(mRunLength - 1) * 2 + 1]);
+			mRunLength = 0;
+		}
+	}
+
+	private boolean isRunWithinTolerance(float x, float y) {
+		final float startX = mPoints[(mPointCount - 1) * 2];
+		final float startY = mPoints[(mPointCount - 1) * 2 + 1];
+		final float dx = x - startX;
+		final float dy = y - startY;
+		final float lengthSquared = dx * dx + dy * dy;
+		final float toleranceSquared = mTolerance * mTolerance;
+		for (int i = 0; i < mRunLength; i++) {
+			final float px = mRun[i * 2] - startX;
+			final float py = mRun[i * 2 + 1] - startY;
+
+			// squared distance from the segment (clamped to its ends)
+			float t = lengthSquared > 0 ? (px * dx + py * dy) / lengthSquared : 0;
+			t = Math.max(0, Math.min(1, t));
+			final float ex = px - t * dx;
+			final float ey = py - t * dy;
+			if (ex * ex + ey * ey > toleranceSquared) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void addSimplifiedPoint(float x, float y) {
+		if ((mPointCount + 1) * 2 > mPoints.length) {
+			float[] newPoints = new float[mPoints.length * 2];
+			System.arraycopy(mPoints, 0, newPoints, 0, mPointCount * 2);
+			mPoints = newPoints;
+		}
+		mPoints[mPointCount * 2] = x;
+		mPoints[mPointCount * 2 + 1] = y;
+		mPointCount++;
+	}
+
+	/**
+	 * @return the number of points in the simplified stroke (not including any point still pending simplification)
+	 */
+	public int getPointCount() {
+		return mPointCount;
+	}
+
+	/**
+	 * Gets the bounds of every point added to the stroke
+	 *
+	 * @param out the rect to write the bounds to
+	 */
+	public void getBounds(RectF out) {
+		out.set(mBounds);
+	}
+
+	/**
+	 * Writes the stroke (including any point still pending simplification) to a path
+	 *
+	 * @param out the path to write to (which is reset first)
+	 */
+	public void toPath(Path out) {
+		out.reset();
+		if (mPointCount == 0) {
+			return;
+		}
+		out.moveTo(mPoints[0], mPoints[1]);
+		for (int i = 1; i < mPointCount; i++) {
+			out.lineTo(mPoints[i * 2], mPoints[i * 2 + 1]);
+		}
+		if (mRunLength > 0) {
+			out.lineTo(mRun[(mRunLength - 1) * 2], mRun[(mRunLength - 1) * 2 + 1]);
+		} else if (mPointCount == 1) {
+			out.lineTo(mPoints[0], mPoints[1]); // so that a single point is still drawn
+		}
+	}
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+
+import com.soundcloud.api.ApiWrapper;
+import com.soundcloud.api.Endpoints;
+import com.soundcloud.api.Env;
+import com.soundcloud.api.Params;
+import com.soundcloud.api.Request;
+import com.soundcloud.api.Token;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of recordings waiting to be uploaded to SoundCloud. Jobs are saved to disk (and their recordings moved out of
+ * the cache directory) so they survive process death; they are uploaded in the background a few at a time, retried
+ * with exponential backoff after connection errors, and once uploaded are passed on to the
+ * {@link AreaRegistrationQueue}. Must only be used from the UI thread.
+ */
+class SoundCloudUploadQueue {
+
+	private static final String QUEUE_FILE = "pending_uploads.json";
+	private static final String UPLOAD_DIRECTORY = "uploads";
+
+	private static final int MAX_CONCURRENT_UPLOADS = 2;
+	private static final int THREAD_KEEP_ALIVE_TIME = 30; // seconds
+	private static final long INITIAL_RETRY_DELAY = 5000; // ms
+	private static final long MAX_RETRY_DELAY = 10 * 60 * 1000; // ms
+
+	// how long to wait before removing a notification (after completion or failure)
+	private static final int NOTIFICATION_REMOVAL_DELAY = 3500;
+
+	private static SoundCloudUploadQueue sInstance;
+
+	public static class Upload {
+		public final long id;
+		public final String fileName;
+		public final String pageId;
+		public final Rect gridRect;
+		private final String mAccessToken;
+
+		// only accessed from the UI thread
+		private int mAttempts;
+		private boolean mUploaded; // SoundCloud has created the track, but we don't yet know its id
+		private long mNextAttemptTime; // in SystemClock.elapsedRealtime() time; not persisted
+
+		private Upload(long id, String fileName, String pageId, Rect gridRect, String accessToken) {
+			this.id = id;
+			this.fileName = fileName;
+			this.pageId = pageId;
+			this.gridRect = gridRect;
+			mAccessToken = accessToken;
+		}
+
+		private JSONObject toJSON() throws JSONException {
+			JSONObject json = new JSONObject();
+			json.put("id", id);
+			json.put("fileName", fileName);
+			json.put("pageId", pageId);
+			json.put("left", gridRect.left);
+			json.put("top", gridRect.top);
+			json.put("right", gridRect.right);
+			json.put("bottom", gridRect.bottom);
+			json.put("accessToken", mAccessToken);
+			json.put("attempts", mAttempts);
+			json.put("uploaded", mUploaded);
+			return json;
+		}
+
+		private static Upload fromJSON(JSONObject json) throws JSONException {
+			Upload upload = new Upload(json.getLong("id"), json.getString("fileName"), json.getString("pageId"), new
+					Rect(json.getInt("left"), json.getInt("top"), json.getInt("right"), json.getInt("bottom")), json
+					.getString("accessToken"));
+			upload.mAttempts = json.optInt("attempts");
+			upload.mUploaded = json.optBoolean("uploaded");
+			return upload;
+		}
+
+		private int getNotificationId() {
+			return (int) id;
+		}
+	}
+
+	public interface UploadListener {
+		/**
+		 * Called when a recording has been uploaded (its area registration will already have been queued)
+		 */
+		void uploadCompleted(Upload upload, long trackId);
+
+		/**
+		 * Called when a recording could not be uploaded and will not be retried
+		 */
+		void uploadFailed(Upload upload);
+	}
+
+	private final Context mContext;
+	private final File mQueueFile;
+	private final File mUploadDirectory;
+	private final ArrayList<Upload> mPending = new ArrayList<>();
+	private final ArrayList<Upload> mActive = new ArrayList<>();
+	private long mLastUploadId;
+
+	private final ApiWrapper mApiWrapper;
+	private final ThreadPoolExecutor mExecutor;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private UploadListener mListener;
+
+	private final NotificationManager mNotifyManager;
+
+	private final Runnable mStartUploadsRunnable = new Runnable() {
+		@Override
+		public void run() {
+			startUploads();
+		}
+	};
+
+	/**
+	 * Gets the queue, creating it (and resuming any uploads pending from a previous session) if necessary
+	 */
+	public static SoundCloudUploadQueue getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new SoundCloudUploadQueue(context.getApplicationContext());
+			sInstance.startUploads();
+		}
+		return sInstance;
+	}
+
+	private SoundCloudUploadQueue(Context context) {
+		mContext = context;
+		mQueueFile = new File(context.getFilesDir(), QUEUE_FILE);
+		mUploadDirectory = new File(context.getFilesDir(), UPLOAD_DIRECTORY);
+		mNotifyManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+
+		// we use our own wrapper as the activity's may not exist when resuming uploads
+		mApiWrapper = new ApiWrapper(context.getString(R.string.soundcloud_client_id), context.getString(R.string
+				.soundcloud_client_secret), null, null, Env.LIVE);
+
+		mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_UPLOADS, MAX_CONCURRENT_UPLOADS, THREAD_KEEP_ALIVE_TIME,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			mExecutor.allowCoreThreadTimeOut(true); // don't keep threads around when there's nothing to upload
+		}
+
+		load();
+	}
+
+	public void setUploadListener(UploadListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Queues a recording for upload. The recording file is moved into the queue's own storage, so the caller should not
+	 * use or delete it afterwards.
+	 *
+	 * @param recordFileName the recorded audio file
+	 * @param pageId         the page the recording belongs to
+	 * @param gridRect       the recording's area on the page, in grid coordinates
+	 * @param accessToken    the SoundCloud access token to upload with
+	 * @return the queued upload
+	 */
+	public Upload add(String recordFileName, String pageId, Rect gridRect, String accessToken) {
+		long id = Math.max(System.currentTimeMillis(), mLastUploadId + 1);
+		mLastUploadId = id;
+
+		// the recording is in the cache directory by default, where the system could delete it before uploading
+		File recordFile = new File(recordFileName);
+		if (mUploadDirectory.exists() || mUploadDirectory.mkdirs()) {
+			File queuedFile = new File(mUploadDirectory, recordFile.getName());
+			if (recordFile.renameTo(queuedFile)) {
+				recordFile = queuedFile;
+			}
+		}
+
+		Upload upload = new Upload(id, recordFile.getAbsolutePath(), pageId, new Rect(gridRect), accessToken);
+		mPending.add(upload);
+		save();
+		startUploads();
+		return upload;
+	}
+
+	/**
+	 * @return the number of recordings that have not yet been uploaded
+	 */
+	public int getPendingCount() {
+		return mPending.size();
+	}
+
+	private void startUploads() {
+		mHandler.removeCallbacks(mStartUploadsRunnable);
+		long now = SystemClock.elapsedRealtime();
+		long nextAttemptTime = Long.MAX_VALUE;
+		for (Upload upload : mPending) {
+			if (mActive.size() >= MAX_CONCURRENT_UPLOADS) {
+				return; // we'll check again when an upload finishes
+			}
+			if (mActive.contains(upload)) {
+				continue;
+			}
+			if (upload.mNextAttemptTime <= now) {
+				mActive.add(upload);
+				mExecutor.execute(new UploadRunnable(upload));
+			} else {
+				nextAttemptTime = Math.min(nextAttemptTime, upload.mNextAttemptTime);
+			}
+		}
+		if (nextAttemptTime != Long.MAX_VALUE) {
+			mHandler.postDelayed(mStartUploadsRunnable, nextAttemptTime - now);
+		}
+	}
+
+	private void uploadFinished(Upload upload, int result, long trackId) {
+		mActive.remove(upload);
+		NotificationCompat.Builder builder = getNotificationBuilder();
+		switch (result) {
+			case UploadRunnable.RESULT_SUCCEEDED:
+				mPending.remove(upload);
+				deleteRecording(upload);
+				AreaRegistrationQueue.getInstance(mContext).add(new AreaRegistrationQueue.Registration(upload.pageId,
+						trackId, upload.gridRect.left, upload.gridRect.top, upload.gridRect.right, upload.gridRect
+						.bottom));
+				if (mListener != null) {
+					mListener.uploadCompleted(upload, trackId);
+				}
+				builder.setContentText(mContext.getString(R.string.audio_upload_completed));
+				break;
+
+			case UploadRunnable.RESULT_FIND_TRACK:
+				upload.mUploaded = true; // never upload again, or we'd create a duplicate - just look for its id
+				// fall through
+			case UploadRunnable.RESULT_RETRY:
+				upload.mAttempts++;
+				long retryDelay = Math.min(INITIAL_RETRY_DELAY << Math.min(upload.mAttempts - 1, 16), MAX_RETRY_DELAY);
+				upload.mNextAttemptTime = SystemClock.elapsedRealtime() + retryDelay;
+				builder.setContentText(mContext.getString(R.string.audio_upload_waiting));
+				break;
+
+			default:
+				mPending.remove(upload);
+				deleteRecording(upload);
+				if (mListener != null) {
+					mListener.uploadFailed(upload);
+				}
+				builder.setContentText(mContext.getString(R.string.audio_upload_failed));
+				break;
+		}
+		save();
+
+		// finish the notification and queue its removal
+		final int notificationId = upload.getNotificationId();
+		mNotifyManager.notify(notificationId, builder.build());
+		mHandler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				mNotifyManager.cancel(notificationId);
+			}
+		}, NOTIFICATION_REMOVAL_DELAY);
+
+		startUploads();
+	}
+
+	private NotificationCompat.Builder getNotificationBuilder() {
+		NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext);
+		builder.setContentTitle(mContext.getString(R.string.audio_upload_title)).setContentText(mContext.getString(R
+				.string.audio_upload_progress)).setSmallIcon(R.drawable.ic_notification).setColor(mContext
+				.getResources().getColor(R.color.primary)).setAutoCancel(true);
+		return builder;
+	}
+
+	private void deleteRecording(Upload upload) {
+		//noinspection ResultOfMethodCallIgnored
+		new File(upload.fileName).delete();
+	}
+
+	private void load() {
+		JSONArray uploads = JsonQueueFile.read(mQueueFile);
+		for (int i = 0; i < uploads.length(); i++) {
+			try {
+				Upload upload = Upload.fromJSON(uploads.getJSONObject(i));
+				mPending.add(upload);
+				mLastUploadId = Math.max(mLastUploadId, upload.id);
+			} catch (JSONException ignored) {
+				// skip invalid entries
+			}
+		}
+	}
+
+	private void save() {
+		JSONArray uploads = new JSONArray();
+		for (Upload upload : mPending) {
+			try {
+				uploads.put(upload.toJSON());
+			} catch (JSONException ignored) {
+			}
+		}
+		JsonQueueFile.write(mQueueFile, uploads);
+	}
+
+	private class UploadRunnable implements Runnable {
+
+		private static final int RESULT_SUCCEEDED = 0;
+		private static final int RESULT_RETRY = 1;
+		private static final int RESULT_FAILED = 2;
+		private static final int RESULT_FIND_TRACK = 3; // uploaded, but we need to retry to find the track's id
+
+		private static final int MAX_TRACKS_TO_SEARCH = 200; // the API's page size limit
+
+		private final Upload mUpload;
+		private final NotificationCompat.Builder mBuilder; // only accessed from the UI thread
+		private int mLastProgress = -1;
+		private boolean mTrackCreated; // only accessed from the upload thread
+
+		public UploadRunnable(Upload upload) {
+			mUpload = upload;
+			mBuilder = getNotificationBuilder();
+			mTrackCreated = upload.mUploaded;
+		}
+
+		@Override
+		public void run() {
+			long trackId = -1;
+			int result;
+			try {
+				trackId = mTrackCreated ? findUploadedTrack() : upload();
+				result = RESULT_SUCCEEDED;
+			} catch (IOException e) {
+				// connection errors are usually temporary; once the track exists we must not upload it again, though
+				result = mTrackCreated ? RESULT_FIND_TRACK : RESULT_RETRY;
+			} catch (JSONException e) {
+				result = mTrackCreated ? RESULT_FIND_TRACK : RESULT_FAILED;
+			} catch (UploadRejectedException e) {
+				result = RESULT_FAILED;
+			}
+
+			final long finalTrackId = trackId;
+			final int finalResult = result;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					uploadFinished(mUpload, finalResult, finalTrackId);
+				}
+			});
+		}
+
+		private long upload() throws IOException, JSONException, UploadRejectedException {
+			final File file = new File(mUpload.fileName);
+			if (!file.exists()) {
+				throw new UploadRejectedException(); // nothing we can do
+			}
+
+			// @formatter:off
+			Request request = Request.to(Endpoints.TRACKS)
+					.withFile(Params.Track.ASSET_DATA, file)
+					.add(Params.Track.TITLE, mContext.getString(R.string.audio_upload_file_title))
+					.add(Params.Track.DESCRIPTION, mContext.getString(R.string.audio_upload_file_description))
+					.add(Params.Track.TYPE, "spoken")
+					.add(Params.Track.GENRE, "storytelling")
+					.add(Params.Track.TAG_LIST, "PaperChains " +
+							"soundcloud:created-with-client-id=" + mContext.getString(R.string.soundcloud_client_id) +
+							" " + "paperchains:page-key=" + mUpload.pageId + " " + getUploadTag())
+					.add(Params.Track.SHARING, Params.Track.PUBLIC)
+					.add(Params.Track.STREAMABLE, true)
+					.add(Params.Track.DOWNLOADABLE, true)
+					.add(Params.Track.LICENSE, "cc-by-sa");
+			// @formatter:on
+
+			// add our app icon if possible
+			final File artwork = getAppIconCacheFile();
+			final long length;
+			if (artwork != null) {
+				request.withFile(Params.Track.ARTWORK_DATA, artwork);
+				length = file.length() + artwork.length();
+			} else {
+				length = file.length();
+			}
+
+			// notify progress
+			request.setProgressListener(new Request.TransferProgressListener() {
+				@Override
+				public void transferred(long transferred) throws IOException {
+					publishProgress(transferred, length);
+				}
+			});
+
+			// upload, then get the JSON response
+			HttpResponse response = mApiWrapper.post(request.usingToken(new Token(mUpload.mAccessToken, null, Token
+					.SCOPE_NON_EXPIRING)));
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode != HttpStatus.SC_CREATED) {
+				throwStatusError(statusCode);
+			}
+			mTrackCreated = true; // from now on, failures mean we have to look up the id rather than upload again
+			return new JSONObject(EntityUtils.toString(response.getEntity())).getLong("id");
+		}
+
+		/**
+		 * Finds the id of a track that we have already uploaded (but whose response we could not read), via the unique
+		 * tag it was uploaded with
+		 */
+		private long findUploadedTrack() throws IOException, JSONException, UploadRejectedException {
+			HttpResponse response = mApiWrapper.get(Request.to(Endpoints.MY_TRACKS).add("limit",
+					MAX_TRACKS_TO_SEARCH).usingToken(new Token(mUpload.mAccessToken, null, Token.SCOPE_NON_EXPIRING)));
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode != HttpStatus.SC_OK) {
+				throwStatusError(statusCode);
+			}
+
+			final String uploadTag = getUploadTag();
+			JSONArray tracks = new JSONArray(EntityUtils.toString(response.getEntity()));
+			for (int i = 0; i < tracks.length(); i++) {
+				JSONObject track = tracks.getJSONObject(i);
+				if (track.optString("tag_list").contains(uploadTag)) {
+					return track.getLong("id");
+				}
+			}
+			throw new UploadRejectedException(); // the track has been deleted since we uploaded it
+		}
+
+		/**
+		 * @return a tag that identifies this upload, so that we can find its track even if we never see its id
+		 */
+		private String getUploadTag() {
+			return "paperchains:upload-id=" + mUpload.id;
+		}
+
+		/**
+		 * Always throws: an IOException if the request may succeed if retried, or UploadRejectedException if not
+		 */
+		private void throwStatusError(int statusCode) throws IOException, UploadRejectedException {
+			if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR || statusCode == HttpStatus.SC_REQUEST_TIMEOUT) {
+				throw new IOException("Server error " + statusCode);
+			}
+			throw new UploadRejectedException(); // e.g., an invalid token - retrying will not help
+		}
+
+		private void publishProgress(final long transferred, final long length) {
+			final int progress = length > 0 ? (int) (100 * transferred / length) : 0;
+			if (progress == mLastProgress) {
+				return; // no need to update the notification
+			}
+			mLastProgress = progress;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mActive.contains(mUpload)) {
+						mBuilder.setProgress(100, progress, false);
+						mNotifyManager.notify(mUpload.getNotificationId(), mBuilder.build());
+					}
+				}
+			});
+		}
+	}
+
+	private static class UploadRejectedException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private synchronized File getAppIconCacheFile() {
+		// if we've already created the file, just return it
+		File cacheFile = new File(mContext.getCacheDir(), "paperchains.png");
+		if (cacheFile.exists()) {
+			return cacheFile;
+		}
+
+		// otherwise, load from assets
+		try {
+			InputStream inputStream = mContext.getAssets().open("paperchains.png");
+			// suppressed as it requires API level 19
+			//noinspection TryFinallyCanBeTryWithResources
+			try {
+				FileOutputStream outputStream = new FileOutputStream(cacheFile);
+				//noinspection TryFinallyCanBeTryWithResources
+				try {
+					byte[] buf = new byte[1024];
+					int len;
+					while ((len = inputStream.read(buf)) > 0) {
+						outputStream.write(buf, 0, len);
+					}
+				} finally {
+					outputStream.close();
+				}
+			} finally {
+				inputStream.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return cacheFile;
+	}
+}
@@ -36,12 +36,15 @@ class SoundCloudUrlFetcherTask extends AsyncTask<Long, Void, String> {
 
 	private final WeakReference<PaperChainsActivity> mContext;
 	private final ApiWrapper mWrapper;
+	private final StreamUrlCache mUrlCache;
 
+	private long mTrackId;
 	private int errorReason = -1;
 
-	public SoundCloudUrlFetcherTask(PaperChainsActivity context, ApiWrapper wrapper) {
+	public SoundCloudUrlFetcherTask(PaperChainsActivity context, ApiWrapper wrapper, StreamUrlCache urlCache) {
 		mContext = new WeakReference<>(context);
 		mWrapper = wrapper;
+		mUrlCache = urlCache;
 	}
 
 	@Override
@@ -50,22 +53,14 @@ class SoundCloudUrlFetcherTask extends AsyncTask<Long, Void, String> {
 			return null;
 		}
 		final long trackId = trackIds[0];
+		mTrackId = trackId;
 
 		try {
-			HttpResponse trackResponse = mWrapper.get(Request.to(Endpoints.TRACK_DETAILS, trackId));
-			if (trackResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-				JSONObject trackJSON = new JSONObject(EntityUtils.toString(trackResponse.getEntity()));
-				if (trackJSON.getBoolean("streamable")) { // should always be the case
-					HttpResponse streamResponse = mWrapper.get(Request.to("/tracks/%d/stream", trackId));
-					JSONObject streamJSON = new JSONObject(EntityUtils.toString(streamResponse.getEntity()));
-					return streamJSON.getString("location");
-				}
+			String url = resolveStreamUrl(mWrapper, mUrlCache, trackId);
+			if (url == null) {
 				errorReason = R.string.hint_soundcloud_load_too_early;
-				return null;
-			} else {
-				errorReason = R.string.hint_soundcloud_load_too_early;
-				return null;
 			}
+			return url;
 		} catch (IOException e) {
 			return null;
 		} catch (ParseException e) {
@@ -75,13 +70,44 @@ class SoundCloudUrlFetcherTask extends AsyncTask<Long, Void, String> {
 		}
 	}
 
+	/**
+	 * Resolves the stream location of a track. Blocks while contacting SoundCloud, so must not be called from the UI
+	 * thread.
+	 *
+	 * @param wrapper  the SoundCloud API wrapper to use
+	 * @param urlCache the cache to check first, and to store the result in
+	 * @param trackId  the track to resolve
+	 * @return the stream url, or null if the track has not yet been processed (or has been deleted)
+	 */
+	static String resolveStreamUrl(ApiWrapper wrapper, StreamUrlCache urlCache, long trackId) throws IOException,
+			ParseException, JSONException {
+		// if we've resolved this track recently (and the url hasn't expired) there's no need to contact SoundCloud
+		String cachedUrl = urlCache.get(trackId);
+		if (cachedUrl != null) {
+			return cachedUrl;
+		}
+
+		HttpResponse trackResponse = wrapper.get(Request.to(Endpoints.TRACK_DETAILS, trackId));
+		if (trackResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+			JSONObject trackJSON = new JSONObject(EntityUtils.toString(trackResponse.getEntity()));
+			if (trackJSON.getBoolean("streamable")) { // should always be the case
+				HttpResponse streamResponse = wrapper.get(Request.to("/tracks/%d/stream", trackId));
+				JSONObject streamJSON = new JSONObject(EntityUtils.toString(streamResponse.getEntity()));
+				String url = streamJSON.getString("location");
+				urlCache.put(trackId, url);
+				return url;
+			}
+		}
+		return null;
+	}
+
 	@Override
 	protected void onPostExecute(String url) {
 		// notify the activity
 		PaperChainsActivity activity = mContext.get();
 		if (activity != null) {
 			if (url != null) {
-				activity.streamAudioLoadCompleted(url);
+				activity.streamAudioLoadCompleted(mTrackId, url);
 			} else {
 				activity.streamAudioLoadFailed(errorReason == -1 ? R.string.hint_soundcloud_load_failed : errorReason);
 			}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import com.soundcloud.playerapi.Stream;
+
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * In-memory and on-disk cache of resolved SoundCloud stream locations, keyed by track id. Stream locations are signed
+ * urls that expire, so entries are only returned while their expiry time (see {@link Stream#getExpires(String)}) is
+ * far enough in the future for playback to start. Safe to use from any thread, but disk access means that
+ * {@link #get(long)} and {@link #put(long, String)} should not be called from the UI thread. {@link #remove(long)}
+ * never waits for the disk, so can be used from the UI thread.
+ */
+class StreamUrlCache {
+
+	private static final String PREFERENCES_NAME = "stream_urls";
+	private static final int MEMORY_CACHE_SIZE = 100; // number of urls; entries are tiny, so this is mainly a sanity limit
+	private static final long EXPIRY_MARGIN = 30 * 1000; // ignore urls that will expire within this time (ms)
+
+	private static class CachedUrl {
+		public final String url;
+		public final long expires;
+
+		public CachedUrl(String url, long expires) {
+			this.url = url;
+			this.expires = expires;
+		}
+	}
+
+	private final LruCache<Long, CachedUrl> mMemoryCache = new LruCache<>(MEMORY_CACHE_SIZE);
+	private final Context mContext;
+	private SharedPreferences mDiskCache; // loaded lazily to avoid disk access on the UI thread
+	private final HashSet<String> mPendingRemovals = new HashSet<>(); // removed before mDiskCache was loaded
+
+	public StreamUrlCache(Context context) {
+		mContext = context.getApplicationContext();
+	}
+
+	/**
+	 * Gets a cached stream location
+	 *
+	 * @param soundCloudId the track id
+	 * @return the stream url, or null if there is no cached url or it is about to expire
+	 */
+	public String get(long soundCloudId) {
+		CachedUrl cachedUrl = mMemoryCache.get(soundCloudId);
+		if (cachedUrl == null) {
+			// stored as "<expiry time> <url>"
+			String storedUrl = getDiskCache().getString(Long.toString(soundCloudId), null);
+			if (storedUrl != null) {
+				int separator = storedUrl.indexOf(' ');
+				try {
+					cachedUrl = new CachedUrl(storedUrl.substring(separator + 1), Long.parseLong(storedUrl.substring(0,
+							separator)));
+					mMemoryCache.put(soundCloudId, cachedUrl);
+				} catch (NumberFormatException | IndexOutOfBoundsException e) {
+					remove(soundCloudId);
+					return null;
+				}
+			}
+		}
+
+		if (cachedUrl != null) {
+			if (cachedUrl.expires - EXPIRY_MARGIN > System.currentTimeMillis()) {
+				return cachedUrl.url;
+			}
+			remove(soundCloudId);
+		}
+		return null;
+	}
+
+	/**
+	 * Caches a resolved stream location until its expiry time
+	 *
+	 * @param soundCloudId the track id
+	 * @param url          the resolved stream url
+	 */
+	public void put(long soundCloudId, String url) {
+		long expires = Stream.getExpires(url);
+		mMemoryCache.put(soundCloudId, new CachedUrl(url, expires));
+		getDiskCache().edit().putString(Long.toString(soundCloudId), expires + " " + url).commit();
+	}
+
+	/**
+	 * Removes a stream location from the cache (for example, if it could not be played)
+	 *
+	 * @param soundCloudId the track id
+	 */
+	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+	public void remove(long soundCloudId) {
+		mMemoryCache.remove(soundCloudId);
+		synchronized (this) {
+			if (mDiskCache == null) {
+				mPendingRemovals.add(Long.toString(soundCloudId)); // rather than loading it here
+				return;
+			}
+		}
+		SharedPreferences.Editor editor = mDiskCache.edit().remove(Long.toString(soundCloudId));
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			editor.apply(); // removed from memory immediately, so get() will not see it; written in the background
+		} else {
+			editor.commit();
+		}
+	}
+
+	private synchronized SharedPreferences getDiskCache() {
+		if (mDiskCache == null) {
+			mDiskCache = mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+			// remove expired entries so the preferences file doesn't grow indefinitely
+			long now = System.currentTimeMillis();
+			SharedPreferences.Editor editor = null;
+			if (!mPendingRemovals.isEmpty()) {
+				editor = mDiskCache.edit();
+				for (String key : mPendingRemovals) {
+					editor.remove(key);
+				}
+				mPendingRemovals.clear();
+			}
+			for (Map.Entry<String, ?> entry : mDiskCache.getAll().entrySet()) {
+				Object value = entry.getValue();
+				boolean expired = true;
+				if (value instanceof String) {
+					String storedUrl = (String) value;
+					int separator = storedUrl.indexOf(' ');
+					try {
+						expired = separator < 0 || Long.parseLong(storedUrl.substring(0, separator)) < now;
+					} catch (NumberFormatException ignored) {
+					}
+				}
+				if (expired) {
+					if (editor == null) {
+						editor = mDiskCache.edit();
+					}
+					editor.remove(entry.getKey());
+				}
+			}
+			if (editor != null) {
+				editor.commit();
+			}
+		}
+		return mDiskCache;
+	}
+}
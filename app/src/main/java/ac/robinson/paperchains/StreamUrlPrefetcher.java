@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.os.Build;
+
+import com.soundcloud.playerapi.ApiWrapper;
+
+import org.apache.http.ParseException;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the stream locations of a page's audio areas in the background, before they are tapped, so that playback
+ * only has to wait for the player to prepare. Requests are made a few at a time, in order of priority (lowest value
+ * first), and any that are still queued are dropped on {@link #cancel()}.
+ */
+class StreamUrlPrefetcher {
+
+	private static final int MAX_CONCURRENT_REQUESTS = 2;
+	private static final int THREAD_KEEP_ALIVE_TIME = 30; // seconds
+
+	private final ApiWrapper mWrapper;
+	private final StreamUrlCache mUrlCache;
+	private final ThreadPoolExecutor mExecutor;
+
+	private final AtomicInteger mGeneration = new AtomicInteger(); // incremented to invalidate queued requests
+	private long mSequence; // used to keep requests of equal priority in the order they were made
+
+	private class PrefetchRequest implements Runnable, Comparable<PrefetchRequest> {
+		private final long mSoundCloudId;
+		private final float mPriority;
+		private final long mSequenceNumber;
+		private final int mRequestGeneration;
+
+		public PrefetchRequest(long soundCloudId, float priority, long sequence, int generation) {
+			mSoundCloudId = soundCloudId;
+			mPriority = priority;
+			mSequenceNumber = sequence;
+			mRequestGeneration = generation;
+		}
+
+		@Override
+		public void run() {
+			if (mRequestGeneration != mGeneration.get()) {
+				return; // cancelled while queued
+			}
+			try {
+				SoundCloudUrlFetcherTask.resolveStreamUrl(mWrapper, mUrlCache, mSoundCloudId);
+			} catch (IOException | ParseException | JSONException ignored) {
+				// nothing to do - we'll try again when the area is tapped
+			}
+		}
+
+		@Override
+		public int compareTo(@SuppressWarnings("NullableProblems") PrefetchRequest another) {
+			if (mPriority != another.mPriority) {
+				return mPriority < another.mPriority ? -1 : 1;
+			}
+			return mSequenceNumber < another.mSequenceNumber ? -1 : (mSequenceNumber == another.mSequenceNumber ? 0 :
+					1);
+		}
+	}
+
+	public StreamUrlPrefetcher(ApiWrapper wrapper, StreamUrlCache urlCache) {
+		mWrapper = wrapper;
+		mUrlCache = urlCache;
+		mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS, THREAD_KEEP_ALIVE_TIME,
+				TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			mExecutor.allowCoreThreadTimeOut(true); // don't keep threads around when there's nothing to prefetch
+		}
+	}
+
+	/**
+	 * Queues a track for resolution
+	 *
+	 * @param soundCloudId the track id
+	 * @param priority     the request's priority - lower values are resolved first
+	 */
+	public void prefetch(long soundCloudId, float priority) {
+		mExecutor.execute(new PrefetchRequest(soundCloudId, priority, mSequence++, mGeneration.get()));
+	}
+
+	/**
+	 * Drops all queued requests. Requests already in progress will complete (and be cached), but no new ones start.
+	 */
+	public void cancel() {
+		mGeneration.incrementAndGet();
+		mExecutor.getQueue().clear();
+	}
+
+	/**
+	 * Cancels all requests and stops the prefetcher. It cannot be used again after this call.
+	 */
+	public void shutdown() {
+		cancel();
+		mExecutor.shutdownNow();
+	}
+}
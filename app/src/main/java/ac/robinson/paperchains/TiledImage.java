@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.paperchains;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * A multi-resolution, tiled version of an image, so that drawing only needs to sample the visible tiles at a
+ * resolution close to that of the screen. Level 0 is at the resolution of the source bitmap; each subsequent level
+ * halves its size, down to a single tile. Tiles are positioned in the coordinates of the original image (which may be
+ * larger than the source bitmap), so they can be drawn directly onto a canvas that has been scaled to the image.
+ */
+class TiledImage {
+
+	public static final int TILE_SIZE = 512;
+
+	private final int mImageWidth;
+	private final int mImageHeight;
+	private final Level[] mLevels;
+
+	private final RectF mTileRect = new RectF();
+
+	private static class Level {
+		final float scaleX; // image pixels per level pixel
+		final float scaleY;
+		final int columns;
+		final int rows;
+		final Bitmap[] tiles; // row-major
+
+		Level(float scaleX, float scaleY, int columns, int rows, Bitmap[] tiles) {
+			this.scaleX = scaleX;
+			this.scaleY = scaleY;
+			this.columns = columns;
+			this.rows = rows;
+			this.tiles = tiles;
+		}
+	}
+
+	private TiledImage(int imageWidth, int imageHeight, Level[] levels) {
+		mImageWidth = imageWidth;
+		mImageHeight = imageHeight;
+		mLevels = levels;
+	}
+
+	/**
+	 * Builds the tiles for an image. This is slow, so should be called from a background thread.
+	 *
+	 * @param source      the image to tile (not modified)
+	 * @param imageWidth  the width of the original image that source represents (which may be downsampled)
+	 * @param imageHeight the height of the original image that source represents
+	 * @param pool        the pool to take tile bitmaps from (and return them to via {@link #release})
+	 * @param tileConfig  the pixel format of the tiles (e.g., RGB_565, as the image has no transparency)
+	 * @return the tiled image, or null if there was not enough memory to create it
+	 */
+	public static TiledImage build(Bitmap source, int imageWidth, int imageHeight, BitmapPool pool, Bitmap.Config
+			tileConfig) {
+		int levelCount = 1;
+		for (int size = Math.max(source.getWidth(), source.getHeight()); size > TILE_SIZE; size /= 2) {
+			levelCount++;
+		}
+
+		Level[] levels = new Level[levelCount];
+		Canvas canvas = new Canvas();
+		Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+		Rect srcRect = new Rect();
+		Rect dstRect = new Rect();
+		Bitmap levelBitmap = source;
+		try {
+			for (int i = 0; i < levelCount; i++) {
+				if (i > 0) {
+					// each level is scaled down from the previous one, so quality is maintained at every level
+					Bitmap previousLevelBitmap = levelBitmap;
+					levelBitmap = pool.get(Math.max(1, previousLevelBitmap.getWidth() / 2), Math.max(1,
+							previousLevelBitmap.getHeight() / 2), tileConfig);
+					dstRect.set(0, 0, levelBitmap.getWidth(), levelBitmap.getHeight());
+					canvas.setBitmap(levelBitmap);
+					canvas.drawBitmap(previousLevelBitmap, null, dstRect, paint);
+					releaseLevelBitmap(previousLevelBitmap, source, levels[i - 1], pool);
+				}
+				levels[i] = createLevel(levelBitmap, levelBitmap != source, imageWidth, imageHeight, pool,
+						tileConfig, canvas, paint, srcRect, dstRect);
+			}
+			releaseLevelBitmap(levelBitmap, source, levels[levelCount - 1], pool);
+		} catch (OutOfMemoryError e) {
+			new TiledImage(imageWidth, imageHeight, levels).release(pool);
+			releaseLevelBitmap(levelBitmap, source, null, pool);
+			return null;
+		}
+		return new TiledImage(imageWidth, imageHeight, levels); // no reference to source, so it can be discarded
+	}
+
+	private static Level createLevel(Bitmap levelBitmap, boolean canUseAsTile, int imageWidth, int imageHeight,
+	                                 BitmapPool pool, Bitmap.Config tileConfig, Canvas canvas, Paint paint, Rect
+			                                 srcRect, Rect dstRect) {
+		final int width = levelBitmap.getWidth();
+		final int height = levelBitmap.getHeight();
+		final int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+		final int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		Bitmap[] tiles = new Bitmap[columns * rows];
+		if (tiles.length == 1 && canUseAsTile) {
+			tiles[0] = levelBitmap; // no need to copy
+		} else {
+			for (int row = 0; row < rows; row++) {
+				for (int column = 0; column < columns; column++) {
+					final int x = column * TILE_SIZE;
+					final int y = row * TILE_SIZE;
+					final int tileWidth = Math.min(TILE_SIZE, width - x);
+					final int tileHeight = Math.min(TILE_SIZE, height - y);
+					Bitmap tile = pool.get(tileWidth, tileHeight, tileConfig);
+					srcRect.set(x, y, x + tileWidth, y + tileHeight);
+					dstRect.set(0, 0, tileWidth, tileHeight);
+					canvas.setBitmap(tile);
+					canvas.drawBitmap(levelBitmap, srcRect, dstRect, paint);
+					tiles[row * columns + column] = tile;
+				}
+			}
+		}
+		return new Level(imageWidth / (float) width, imageHeight / (float) height, columns, rows, tiles);
+	}
+
+	private static void releaseLevelBitmap(Bitmap levelBitmap, Bitmap source, Level level, BitmapPool pool) {
+		// a single tile covering the whole level may be the level bitmap itself
+		if (levelBitmap != source && (level == null || level.tiles[0] != levelBitmap)) {
+			pool.put(levelBitmap);
+		}
+	}
+
+	/**
+	 * Chooses the lowest resolution level that still has at least one pixel per screen pixel
+	 *
+	 * @param screenScale the number of screen pixels per image pixel
+	 * @return the level to draw
+	 */
+	public int getLevelForScale(float screenScale) {
+		int level = 0;
+		while (level + 1 < mLevels.length && 1 / mLevels[level + 1].scaleX >= screenScale) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Draws the visible part of the image onto a canvas that has already been transformed to image coordinates
+	 *
+	 * @param canvas      the canvas to draw on
+	 * @param visibleRect the visible part of the image, in image coordinates
+	 * @param screenScale the number of screen pixels per image pixel (used to choose the level to draw)
+	 * @param paint       the paint to draw with
+	 */
+	public void draw(Canvas canvas, Rect visibleRect, float screenScale, Paint paint) {
+		final Level level = mLevels[getLevelForScale(screenScale)];
+		final float tileWidth = TILE_SIZE * level.scaleX; // in image coordinates
+		final float tileHeight = TILE_SIZE * level.scaleY;
+		final int firstColumn = Math.max(0, (int) (visibleRect.left / tileWidth));
+		final int lastColumn = Math.min(level.columns - 1, (int) ((visibleRect.right - 1) / tileWidth));
+		final int firstRow = Math.max(0, (int) (visibleRect.top / tileHeight));
+		final int lastRow = Math.min(level.rows - 1, (int) ((visibleRect.bottom - 1) / tileHeight));
+
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				final Bitmap tile = level.tiles[row * level.columns + column];
+				mTileRect.left = column * tileWidth;
+				mTileRect.top = row * tileHeight;
+				mTileRect.right = mTileRect.left + tile.getWidth() * level.scaleX;
+				mTileRect.bottom = mTileRect.top + tile.getHeight() * level.scaleY;
+				canvas.drawBitmap(tile, null, mTileRect, paint);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes used by this image's tiles (not including the source bitmap)
+	 */
+	public int getByteCount() {
+		int byteCount = 0;
+		for (Level level : mLevels) {
+			for (Bitmap tile : level.tiles) {
+				byteCount += BitmapPool.getByteCount(tile);
+			}
+		}
+		return byteCount;
+	}
+
+	/**
+	 * Returns all tiles to the pool (the source bitmap is not affected). The image must not be drawn afterwards.
+	 */
+	public void release(BitmapPool pool) {
+		for (Level level : mLevels) {
+			if (level != null) {
+				for (Bitmap tile : level.tiles) {
+					if (tile != null) { // the source bitmap is never used as a tile
+						pool.put(tile);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2013, Nikolai Doronin
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.lassana.recorder;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Samples the recording level at a fixed rate on a background thread, so that readers
+ * (e.g., a level display in the UI) never have to call into the recording engine.
+ * Levels are stored in a lock-free ring buffer, from which the latest value or a
+ * history (e.g., for a live waveform) can be read from any thread without blocking.
+ * <p/>
+ * Levels are normalised to [0, 1] relative to full scale 16 bit audio.
+ */
+public class AmplitudeMeter {
+
+    public static final int SAMPLE_INTERVAL = 50; // milliseconds, i.e., 20 samples per second
+    public static final int HISTORY_SIZE = 256; // about 13 seconds at the default rate; must be a power of two
+
+    private static final float FULL_SCALE = 32767f;
+
+    // levels are stored as float bits so that the ring buffer can use atomic (lock-free) int arrays
+    private final AtomicIntegerArray mPeakLevels = new AtomicIntegerArray(HISTORY_SIZE);
+    private final AtomicIntegerArray mRmsLevels = new AtomicIntegerArray(HISTORY_SIZE);
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    private volatile RecordingEngine mEngine;
+    private Thread mThread;
+    private Thread mStoppedThread; // may still be finishing, so the next thread waits for it before writing any levels
+
+    /**
+     * Starts sampling the given engine's levels.
+     */
+    synchronized void start(RecordingEngine engine) {
+        mEngine = engine;
+        if (mThread == null) {
+            final Thread previousThread = mStoppedThread;
+            mStoppedThread = null;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // rather than blocking the caller of stop(), we hand over here so there is only ever one writer
+                    if (waitForThread(previousThread)) {
+                        sample();
+                    }
+                }
+            }, "AmplitudeMeter");
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stops sampling. The level history is kept, but the latest level becomes zero.
+     */
+    synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mStoppedThread = mThread;
+            mThread = null;
+        }
+        mEngine = null;
+    }
+
+    /**
+     * @return the most recent peak level
+     */
+    public float getPeak() {
+        return getLatest(mPeakLevels);
+    }
+
+    /**
+     * @return the most recent RMS level
+     */
+    public float getRms() {
+        return getLatest(mRmsLevels);
+    }
+
+    /**
+     * Gets the most recent peak levels, one per {@link #SAMPLE_INTERVAL}.
+     *
+     * @param out the array to write levels to, oldest first (at most {@link #HISTORY_SIZE})
+     * @return the number of levels written, which is less than out.length if fewer samples are available
+     */
+    public int getPeakHistory(float[] out) {
+        return getHistory(mPeakLevels, out);
+    }
+
+    /**
+     * Gets the most recent RMS levels - see {@link #getPeakHistory(float[])}.
+     */
+    public int getRmsHistory(float[] out) {
+        return getHistory(mRmsLevels, out);
+    }
+
+    /**
+     * Waits for a thread to finish, even if interrupted (so that any thread waiting for us also waits for it).
+     *
+     * @return false if we were interrupted while waiting, and so should not continue
+     */
+    private static boolean waitForThread(Thread thread) {
+        boolean interrupted = false;
+        while (thread != null && thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return !interrupted && !Thread.currentThread().isInterrupted();
+    }
+
+    private void sample() {
+        RecordingEngine startEngine = mEngine;
+        if (startEngine != null) {
+            startEngine.getMaxAmplitude(); // reset, so that the first sample does not include any pre-start audio
+            startEngine.getRmsAmplitude();
+        }
+
+        long nextSampleTime = SystemClock.uptimeMillis() + SAMPLE_INTERVAL;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(Math.max(0, nextSampleTime - SystemClock.uptimeMillis()));
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            RecordingEngine engine = mEngine;
+            if (engine != null) {
+                addLevels(engine.getMaxAmplitude() / FULL_SCALE, engine.getRmsAmplitude() / FULL_SCALE);
+            }
+
+            // sample at a fixed rate, but don't try to catch up if we have fallen behind
+            nextSampleTime = Math.max(SystemClock.uptimeMillis(), nextSampleTime + SAMPLE_INTERVAL);
+        }
+        addLevels(0, 0); // so that the latest level is not left showing after recording stops
+    }
+
+    // only called from the current sampling thread, which does not start until the previous one has finished
+    private void addLevels(float peak, float rms) {
+        final int index = mCount.get() & (HISTORY_SIZE - 1);
+        mPeakLevels.set(index, Float.floatToIntBits(Math.min(1, peak)));
+        mRmsLevels.set(index, Float.floatToIntBits(Math.min(1, rms)));
+        mCount.incrementAndGet(); // published after the levels so that readers never see an unwritten entry
+    }
+
+    private float getLatest(AtomicIntegerArray levels) {
+        final int count = mCount.get();
+        return count == 0 ? 0 : Float.intBitsToFloat(levels.get((count - 1) & (HISTORY_SIZE - 1)));
+    }
+
+    private int getHistory(AtomicIntegerArray levels, float[] out) {
+        final int count = mCount.get();
+        final int available = count < 0 || count > HISTORY_SIZE ? HISTORY_SIZE : count; // < 0 on overflow
+        final int size = Math.min(available, Math.min(out.length, HISTORY_SIZE));
+        for (int i = 0; i < size; i++) {
+            out[i] = Float.intBitsToFloat(levels.get((count - size + i) & (HISTORY_SIZE - 1)));
+        }
+        return size;
+    }
+}
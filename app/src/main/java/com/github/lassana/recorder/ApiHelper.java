@@ -38,6 +38,9 @@ public class ApiHelper {
     public static final boolean HAS_EXECUTE_ON_EXECUTOR_METHOD =
             Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
 
+    public static final boolean HAS_MEDIA_MUXER =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
     @SuppressLint("InlinedApi")
     public static final int DEFAULT_AUDIO_ENCODER =
             Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1
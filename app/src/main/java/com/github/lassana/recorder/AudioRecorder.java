@@ -25,13 +25,20 @@
 
 package com.github.lassana.recorder;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.media.MediaRecorder;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * @author lassana
@@ -39,6 +46,8 @@ import java.io.IOException;
  */
 public class AudioRecorder {
 
+    public static final String TAG = "AudioRecorder";
+
     public static enum Status {
         STATUS_UNKNOWN,
         STATUS_READY_TO_RECORD,
@@ -58,13 +67,21 @@ public class AudioRecorder {
         public void onPaused(String activeRecordFileName);
     }
 
+    public static interface OnMergeListener extends OnException {
+        public void onMerged(String recordFileName);
+    }
+
     /**
      * @author lassana
      * @since 10/06/2013
      */
     public static class MediaRecorderConfig {
+        static final int AAC_FRAME_SAMPLES = 1024;
+        private static final int CONTAINER_BYTES_PER_FRAME = 8; // approximate MPEG-4 sample table overhead
+
         private final int mAudioEncodingBitRate;
         private final int mAudioChannels;
+        private final int mAudioSamplingRate;
         private final int mAudioSource;
         private final int mAudioEncoder;
 
@@ -74,6 +91,36 @@ public class AudioRecorder {
                         MediaRecorder.AudioSource.DEFAULT,      /* Default audio source (usually, phone microphone) */
                         ApiHelper.DEFAULT_AUDIO_ENCODER);       /* Default encoder for target Android version       */
 
+        /**
+         * Single voice recording, e.g., spoken narration.
+         */
+        public static final MediaRecorderConfig SPEECH =
+                new MediaRecorderConfig(32 * 1000,              /* 32 kbit per second                               */
+                        1,                                      /* Mono                                             */
+                        22050,                                  /* Covers the full range of speech                  */
+                        MediaRecorder.AudioSource.DEFAULT,
+                        ApiHelper.DEFAULT_AUDIO_ENCODER);
+
+        /**
+         * Intelligible speech at the smallest size, for slow or metered connections.
+         */
+        public static final MediaRecorderConfig LOW_BANDWIDTH =
+                new MediaRecorderConfig(16 * 1000,              /* 16 kbit per second                               */
+                        1,                                      /* Mono                                             */
+                        16000,                                  /* Wideband speech                                  */
+                        MediaRecorder.AudioSource.DEFAULT,
+                        ApiHelper.DEFAULT_AUDIO_ENCODER);
+
+        /**
+         * Music or other recordings where quality matters more than size.
+         */
+        public static final MediaRecorderConfig HIGH_QUALITY =
+                new MediaRecorderConfig(128 * 1000,             /* 128 kbit per second                              */
+                        2,                                      /* Stereo                                           */
+                        44100,                                  /* CD quality                                       */
+                        MediaRecorder.AudioSource.DEFAULT,
+                        ApiHelper.DEFAULT_AUDIO_ENCODER);
+
         /**
          * Constructor.
          *
@@ -87,43 +134,199 @@ public class AudioRecorder {
          * Used for {@link android.media.MediaRecorder#setAudioEncoder}
          */
         public MediaRecorderConfig(int audioEncodingBitRate, int audioChannels, int audioSource, int audioEncoder) {
+            this(audioEncodingBitRate, audioChannels, 0, audioSource, audioEncoder);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param audioSamplingRate
+         * Used for {@link android.media.MediaRecorder#setAudioSamplingRate}, or 0 for the device's default
+         * @see #MediaRecorderConfig(int, int, int, int)
+         */
+        public MediaRecorderConfig(int audioEncodingBitRate, int audioChannels, int audioSamplingRate,
+                                   int audioSource, int audioEncoder) {
             mAudioEncodingBitRate = audioEncodingBitRate;
             mAudioChannels = audioChannels;
+            mAudioSamplingRate = audioSamplingRate;
             mAudioSource = audioSource;
             mAudioEncoder = audioEncoder;
         }
 
+        /**
+         * Returns the approximate size of a recording per second of audio encoded at {@code bitRate}
+         * bits per second, in {@code framesPerSecond} encoded frames.
+         */
+        static int estimateBytesPerSecond(int bitRate, int framesPerSecond) {
+            return bitRate / 8 + framesPerSecond * CONTAINER_BYTES_PER_FRAME;
+        }
+
+        int getAudioEncodingBitRate() {
+            return mAudioEncodingBitRate;
+        }
+
+        int getAudioChannels() {
+            return mAudioChannels;
+        }
+
+        int getAudioSamplingRate() {
+            return mAudioSamplingRate;
+        }
+
+        int getAudioSource() {
+            return mAudioSource;
+        }
+
+        int getAudioEncoder() {
+            return mAudioEncoder;
+        }
     }
 
-    public class StartRecordTask extends AsyncTask<OnStartListener, Void, Exception> {
+    /**
+     * Runs tasks one at a time, in the order they were submitted, on a shared pool of threads.
+     */
+    private static class SerialExecutor implements Executor {
+        private static final Executor THREAD_POOL = Executors.newCachedThreadPool();
 
-        private OnStartListener mOnStartListener;
+        private final Queue<Runnable> mTasks = new LinkedList<>();
+        private Runnable mActive;
 
         @Override
-        protected Exception doInBackground(OnStartListener... params) {
-            this.mOnStartListener = params[0];
-            mMediaRecorder = new MediaRecorder();
-            mMediaRecorder.setAudioEncodingBitRate(mMediaRecorderConfig.mAudioEncodingBitRate);
-            mMediaRecorder.setAudioChannels(mMediaRecorderConfig.mAudioChannels);
-            mMediaRecorder.setAudioSource(mMediaRecorderConfig.mAudioSource);
-            mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            mMediaRecorder.setOutputFile(getTemporaryFileName());
-            mMediaRecorder.setAudioEncoder(mMediaRecorderConfig.mAudioEncoder);
+        public synchronized void execute(final Runnable task) {
+            mTasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            mActive = mTasks.poll();
+            if (mActive != null) {
+                THREAD_POOL.execute(mActive);
+            }
+        }
+    }
+
+    /**
+     * An operation on the recording engine. These run in the background, strictly in the order
+     * they were requested, so that (e.g.) a release can never overtake a start that was requested
+     * before it. Results are delivered on the UI thread.
+     */
+    private abstract class EngineTask implements Runnable {
+        private Exception mException;
+
+        /**
+         * Returns an exception to pass to {@link #onPostExecute(Exception)}, or null on success.
+         */
+        protected abstract Exception doInBackground();
+
+        protected void onPostExecute(Exception e) {
+        }
+
+        @Override
+        public final void run() {
+            try {
+                mException = doInBackground();
+            } catch (RuntimeException e) {
+                mException = e;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPostExecute(mException);
+                }
+            });
+        }
+    }
+
+    private class PrepareRecordTask extends EngineTask {
+        private final String mFileName;
+
+        public PrepareRecordTask(String fileName) {
+            mFileName = fileName;
+        }
+
+        @Override
+        protected Exception doInBackground() {
+            try {
+                mEngine.prepare(mFileName);
+            } catch (IOException | RuntimeException e) {
+                Log.d(TAG, "Unable to prepare recording: " + e.getMessage()); // start() will try again
+            }
+            return null;
+        }
+    }
+
+    private class ReleaseRecordTask extends EngineTask {
+        private final List<String> mDiscardedSegmentFileNames;
+
+        public ReleaseRecordTask(List<String> discardedSegmentFileNames) {
+            mDiscardedSegmentFileNames = discardedSegmentFileNames;
+        }
+
+        @Override
+        protected Exception doInBackground() {
+            try {
+                mEngine.release();
+            } catch (IOException | RuntimeException e) {
+                Log.d(TAG, "Unable to release recording: " + e.getMessage());
+            }
+
+            // any merge requested before this has already finished (and removed its own segments)
+            for (String segmentFileName : mDiscardedSegmentFileNames) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(segmentFileName).delete();
+            }
+            return null;
+        }
+    }
 
+    private class StartRecordTask extends EngineTask {
+        private final OnStartListener mOnStartListener;
+        private final String mFileName;
+
+        public StartRecordTask(OnStartListener listener, String fileName) {
+            mOnStartListener = listener;
+            mFileName = fileName;
+        }
+
+        @Override
+        protected Exception doInBackground() {
             Exception exception = null;
             try {
-                mMediaRecorder.prepare();
-                mMediaRecorder.start();
+                mEngine.start(mFileName);
             } catch (IOException e) {
                 exception = e;
             }
+
+            // not all devices can encode via MediaCodec - if it failed before recording anything, use MediaRecorder
+            // (safe to replace here, as no other engine operation can be running at the same time)
+            if (exception != null && mEngine instanceof MediaCodecEngine && !new File(mFileName).exists()) {
+                Log.d(TAG, "Falling back to MediaRecorder: " + exception.getMessage());
+                mEngine = new MediaRecorderEngine(mMediaRecorderConfig);
+                exception = null;
+                try {
+                    mEngine.start(mFileName);
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
             return exception;
         }
 
         @Override
         protected void onPostExecute(Exception e) {
-            super.onPostExecute(e);
             if (e == null) {
+                mAmplitudeMeter.start(mEngine);
                 setStatus(AudioRecorder.Status.STATUS_RECORDING);
 	            if (mOnStartListener != null) {
 		            mOnStartListener.onStarted();
@@ -137,29 +340,36 @@ public class AudioRecorder {
         }
     }
 
-    public class PauseRecordTask extends AsyncTask<OnPauseListener, Void, Exception> {
-        private OnPauseListener mOnPauseListener;
+    private class PauseRecordTask extends EngineTask {
+        private final OnPauseListener mOnPauseListener;
+        private boolean mSegmentComplete;
+
+        public PauseRecordTask(OnPauseListener listener) {
+            mOnPauseListener = listener;
+        }
 
         @Override
-        protected Exception doInBackground(OnPauseListener... params) {
-            mOnPauseListener = params[0];
+        protected Exception doInBackground() {
             Exception exception = null;
             try {
-                mMediaRecorder.stop();
-                mMediaRecorder.release();
+                mSegmentComplete = mEngine.pause();
             } catch (Exception e) {
                 exception = e;
             }
-            if ( exception == null ) {
-                appendToFile(mTargetRecordFileName, getTemporaryFileName());
-            }
             return exception;
         }
 
         @Override
         protected void onPostExecute(Exception e) {
-            super.onPostExecute(e);
+            mAmplitudeMeter.stop();
             if (e == null) {
+                // segments are only joined when the recording is needed - see merge()
+                if (!mSegmentFileNames.contains(mActiveSegmentFileName)) {
+                    mSegmentFileNames.add(mActiveSegmentFileName);
+                }
+                if (mSegmentComplete) {
+                    mActiveSegmentFileName = null; // otherwise the engine can resume it
+                }
                 setStatus(AudioRecorder.Status.STATUS_RECORD_PAUSED);
 	            if (mOnPauseListener != null) {
 		            mOnPauseListener.onPaused(mTargetRecordFileName);
@@ -173,21 +383,82 @@ public class AudioRecorder {
         }
     }
 
+    private class MergeRecordTask extends EngineTask {
+        private final List<String> mMergeSegmentFileNames;
+
+        public MergeRecordTask(List<String> segmentFileNames) {
+            mMergeSegmentFileNames = new ArrayList<>(segmentFileNames);
+        }
+
+        @Override
+        protected Exception doInBackground() {
+            final List<String> segmentFileNames = new ArrayList<>();
+            for (String segmentFileName : mMergeSegmentFileNames) {
+                try {
+                    mEngine.finish(segmentFileName); // if it is still open
+                } catch (IOException e) {
+                    return e;
+                }
+                if (new File(segmentFileName).length() > 0) {
+                    segmentFileNames.add(segmentFileName);
+                }
+            }
+            if (segmentFileNames.isEmpty()) {
+                return new IOException("Nothing recorded");
+            }
+            if (!Mp4ParserWrapper.merge(segmentFileNames, mTargetRecordFileName)) {
+                return new IOException("Unable to merge recorded segments");
+            }
+            for (String segmentFileName : mMergeSegmentFileNames) {
+                if (!segmentFileName.equals(mTargetRecordFileName)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    new File(segmentFileName).delete();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Exception e) {
+            mMergeTask = null;
+            if (e == null) {
+                // the merged file replaces the segments it was made from (more may have been recorded meanwhile)
+                mSegmentFileNames.subList(0, mMergeSegmentFileNames.size()).clear();
+                mSegmentFileNames.add(0, mTargetRecordFileName);
+                if (mSegmentFileNames.size() > 1) {
+                    startMerge();
+                    return;
+                }
+            }
+            notifyMergeListeners(e);
+        }
+    }
+
     private Status mStatus;
-    private MediaRecorder mMediaRecorder;
+    private volatile RecordingEngine mEngine; // only used via mEngineExecutor, other than for amplitude and size
+    private final Executor mEngineExecutor = new SerialExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AmplitudeMeter mAmplitudeMeter = new AmplitudeMeter();
     private final String mTargetRecordFileName;
     private final Context mContext;
     private final MediaRecorderConfig mMediaRecorderConfig;
 
+    // each start/pause records a separate segment; these are only joined (once) when merge() is called
+    private final List<String> mSegmentFileNames = new ArrayList<>();
+    private String mActiveSegmentFileName;
+    private int mSegmentCount;
+    private MergeRecordTask mMergeTask;
+    private final List<OnMergeListener> mMergeListeners = new ArrayList<>();
+
     private AudioRecorder(final Context context,
                           final String targetRecordFileName,
                           final MediaRecorderConfig mediaRecorderConfig) {
         mTargetRecordFileName = targetRecordFileName;
         mContext = context;
         mMediaRecorderConfig = mediaRecorderConfig;
+        mEngine = ApiHelper.HAS_MEDIA_MUXER ? new MediaCodecEngine(mediaRecorderConfig) :
+                new MediaRecorderEngine(mediaRecorderConfig);
         mStatus = Status.STATUS_UNKNOWN;
-	    //noinspection ResultOfMethodCallIgnored
-	    new File(getTemporaryFileName()).delete();
     }
 
     /**
@@ -211,29 +482,84 @@ public class AudioRecorder {
         return rvalue;
     }
 
+    /**
+     * Optionally prepares the recorder in advance (e.g., while the record button is being shown),
+     * so that {@link #start(OnStartListener)} can begin recording almost immediately.
+     * Call {@link #release()} if the recording is then abandoned.
+     */
+    public void prepare() {
+        if (mActiveSegmentFileName == null) {
+            mActiveSegmentFileName = getSegmentFileName(mSegmentCount++);
+        }
+        mEngineExecutor.execute(new PrepareRecordTask(mActiveSegmentFileName));
+    }
+
+    /**
+     * Releases any resources held for preparing or recording. Merged recordings are not affected,
+     * but segments that have not been merged are deleted, so call {@link #merge(OnMergeListener)}
+     * first if the recording is needed.
+     */
+    public void release() {
+        mAmplitudeMeter.stop();
+        final List<String> segmentFileNames = new ArrayList<>();
+        for (int segment = 0; segment < mSegmentCount; segment++) {
+            segmentFileNames.add(getSegmentFileName(segment));
+        }
+        mEngineExecutor.execute(new ReleaseRecordTask(segmentFileNames));
+    }
+
     /**
      * Continues existing record or starts new one.
      */
-    @SuppressLint("NewApi")
     public void start(final OnStartListener listener) {
-        StartRecordTask task = new StartRecordTask();
-        if (ApiHelper.HAS_EXECUTE_ON_EXECUTOR_METHOD) {
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, listener);
-        } else {
-            task.execute(listener);
+        if (mActiveSegmentFileName == null) {
+            mActiveSegmentFileName = getSegmentFileName(mSegmentCount++);
         }
+        mEngineExecutor.execute(new StartRecordTask(listener, mActiveSegmentFileName));
     }
 
     /**
      * Pauses active recording.
      */
-    @SuppressLint("NewApi")
     public void pause(final OnPauseListener listener) {
-        PauseRecordTask task = new PauseRecordTask();
-        if (ApiHelper.HAS_EXECUTE_ON_EXECUTOR_METHOD) {
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, listener);
-        } else {
-            task.execute(listener);
+        mEngineExecutor.execute(new PauseRecordTask(listener));
+    }
+
+    /**
+     * Joins the recorded segments into the target file, which is passed to the listener when done.
+     * Segments are kept until this is called, so pausing does not need to touch previous segments.
+     */
+    public void merge(final OnMergeListener listener) {
+        mActiveSegmentFileName = null; // any further recording goes into a new segment
+        if (listener != null) {
+            mMergeListeners.add(listener);
+        }
+        if (mMergeTask == null) {
+            startMerge();
+        }
+    }
+
+    private void startMerge() {
+        if (mSegmentFileNames.isEmpty()) {
+            notifyMergeListeners(new IOException("Nothing recorded"));
+            return;
+        } else if (mSegmentFileNames.size() == 1 && mSegmentFileNames.get(0).equals(mTargetRecordFileName)) {
+            notifyMergeListeners(null); // already merged
+            return;
+        }
+        mMergeTask = new MergeRecordTask(mSegmentFileNames);
+        mEngineExecutor.execute(mMergeTask);
+    }
+
+    private void notifyMergeListeners(Exception e) {
+        List<OnMergeListener> listeners = new ArrayList<>(mMergeListeners);
+        mMergeListeners.clear();
+        for (OnMergeListener listener : listeners) {
+            if (e == null) {
+                listener.onMerged(mTargetRecordFileName);
+            } else {
+                listener.onException(e);
+            }
         }
     }
 
@@ -241,6 +567,20 @@ public class AudioRecorder {
         return mStatus;
     }
 
+    /**
+     * Returns the approximate size of a recording (and so its upload) per second of audio, based
+     * on the format actually being recorded, which may differ from the requested config if the
+     * device does not support it. Before recording has started this is the first format that will
+     * be tried.
+     */
+    public int getEstimatedBytesPerSecond() {
+        return mEngine.getEstimatedBytesPerSecond();
+    }
+
+    public MediaRecorderConfig getMediaRecorderConfig() {
+        return mMediaRecorderConfig;
+    }
+
     public String getRecordFileName() {
         return mTargetRecordFileName;
     }
@@ -257,17 +597,26 @@ public class AudioRecorder {
         return mStatus == Status.STATUS_RECORD_PAUSED;
     }
 
-	public int getMaxAmplitude() { return mMediaRecorder.getMaxAmplitude(); }
+    /**
+     * Returns the most recent peak amplitude, as {@link MediaRecorder#getMaxAmplitude()}, without blocking.
+     */
+    public int getMaxAmplitude() {
+        return Math.round(mAmplitudeMeter.getPeak() * 32767);
+    }
 
-    private void setStatus(final Status status) {
-        mStatus = status;
+    /**
+     * Returns the meter that samples recording levels, for level displays and live waveforms.
+     */
+    public AmplitudeMeter getAmplitudeMeter() {
+        return mAmplitudeMeter;
     }
 
-    private String getTemporaryFileName() {
-        return mContext.getCacheDir().getAbsolutePath() + File.separator + "tmprecord";
+    private void setStatus(final Status status) {
+        mStatus = status;
     }
 
-    private void appendToFile(final String targetFileName, final String newFileName) {
-        Mp4ParserWrapper.append(targetFileName, newFileName);
+    private String getSegmentFileName(int segment) {
+        // alongside the target file, so that a single segment can simply be renamed
+        return mTargetRecordFileName + ".part" + segment;
     }
 }
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2013, Nikolai Doronin
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.lassana.recorder;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Records by reading PCM from {@link AudioRecord} on a dedicated thread and encoding it
+ * to AAC with {@link MediaCodec}, muxed into a single MPEG-4 file. Pausing just stops
+ * feeding audio to the encoder, so resuming is immediate, and the file stays open (and
+ * gapless) until it is finished. Preparing sets up capture, encoder and muxer in advance.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class MediaCodecEngine implements RecordingEngine, Runnable {
+
+    public static final String TAG = "MediaCodecEngine";
+
+    private static final String MIME_TYPE = "audio/mp4a-latm"; // AAC
+    private static final int DEFAULT_SAMPLE_RATE = 44100; // the only rate guaranteed to work on all devices
+    private static final int BYTES_PER_SAMPLE = 2; // 16 bit PCM
+    private static final int TIMEOUT_US = 10000;
+    private static final int MAX_END_OF_STREAM_WAIT = 100; // timeouts to wait for the encoder to finish
+
+    private final AudioRecorder.MediaRecorderConfig mConfig;
+
+    private final Object mLock = new Object();
+    private String mFileName; // the file currently open, or null
+    private AudioRecord mAudioRecord;
+    private MediaCodec mEncoder;
+    private MediaMuxer mMuxer;
+    private boolean mMuxerStarted; // set on the recording thread; read after it has finished
+    private Thread mThread;
+    private int mChannels;
+    private int mSampleRate;
+    private volatile int mOpenedSampleRate; // the rate of the most recently opened file, for size estimates
+    private boolean mRecording; // guarded by mLock
+    private boolean mFinishing; // guarded by mLock
+    private boolean mHasRecorded; // whether the open file has been started (rather than just prepared)
+    private Exception mError;
+
+    // only accessed on the recording thread
+    private MediaFormat mOutputFormat;
+    private int mTrackIndex = -1;
+    private long mBytesEncoded; // used for presentation times, so that pauses leave no gap
+    private int mSamplesWritten;
+
+    // levels since they were last read - updated on the recording thread, read (and reset) by the metering thread
+    private final Object mLevelLock = new Object();
+    private int mMaxAmplitude;
+    private double mSumOfSquares;
+    private int mSampleCount;
+
+    public MediaCodecEngine(AudioRecorder.MediaRecorderConfig config) {
+        mConfig = config;
+    }
+
+    @Override
+    public synchronized void prepare(String fileName) throws IOException {
+        if (mFileName != null && !mFileName.equals(fileName)) {
+            finish(mFileName);
+        }
+        if (mFileName == null) {
+            open(fileName);
+        }
+    }
+
+    @Override
+    public synchronized void start(String fileName) throws IOException {
+        prepare(fileName); // no-op if already prepared (or paused) for this file
+
+        boolean started;
+        try {
+            mAudioRecord.startRecording();
+            started = mAudioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING;
+        } catch (IllegalStateException e) {
+            started = false;
+        }
+        if (!started) {
+            mAudioRecord.stop();
+            if (!mHasRecorded) {
+                finish(fileName); // nothing has been recorded, so this removes the file
+            }
+            throw new IOException("Unable to start recording - is the microphone in use?");
+        }
+        mHasRecorded = true;
+        synchronized (mLock) {
+            mRecording = true;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized boolean pause() throws IOException {
+        if (mFileName != null) {
+            synchronized (mLock) {
+                mRecording = false;
+            }
+            mAudioRecord.stop(); // any pending read returns what has been captured so far
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void finish(String fileName) throws IOException {
+        if (mFileName == null || !mFileName.equals(fileName)) {
+            return;
+        }
+        synchronized (mLock) {
+            mRecording = false;
+            mFinishing = true;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException ignored) {
+        }
+
+        Exception error = mError;
+        boolean hasSamples = mSamplesWritten > 0;
+        try {
+            releaseResources();
+        } finally {
+            if (!hasSamples) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(fileName).delete(); // nothing was recorded, so the file is not valid
+            }
+        }
+        if (error != null) {
+            throw new IOException("Recording failed: " + error.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void release() throws IOException {
+        if (mFileName != null) {
+            finish(mFileName);
+        }
+    }
+
+    @Override
+    public int getMaxAmplitude() {
+        synchronized (mLevelLock) {
+            int maxAmplitude = mMaxAmplitude;
+            mMaxAmplitude = 0;
+            return maxAmplitude;
+        }
+    }
+
+    @Override
+    public int getRmsAmplitude() {
+        synchronized (mLevelLock) {
+            int rmsAmplitude = mSampleCount > 0 ? (int) Math.round(Math.sqrt(mSumOfSquares / mSampleCount)) : 0;
+            mSumOfSquares = 0;
+            mSampleCount = 0;
+            return rmsAmplitude;
+        }
+    }
+
+    @Override
+    public int getEstimatedBytesPerSecond() {
+        // the channel fallback does not matter here, as the encoder's bit rate is the same either way
+        final int sampleRate = mOpenedSampleRate > 0 ? mOpenedSampleRate : getRequestedSampleRate();
+        return AudioRecorder.MediaRecorderConfig.estimateBytesPerSecond(mConfig.getAudioEncodingBitRate(),
+                sampleRate / AudioRecorder.MediaRecorderConfig.AAC_FRAME_SAMPLES);
+    }
+
+    private int getRequestedSampleRate() {
+        return mConfig.getAudioSamplingRate() > 0 ? mConfig.getAudioSamplingRate() : DEFAULT_SAMPLE_RATE;
+    }
+
+    private void open(String fileName) throws IOException {
+        // many devices can only capture in mono, and not all support rates other than the default
+        final int channels = mConfig.getAudioChannels() == 2 ? 2 : 1;
+        final int sampleRate = getRequestedSampleRate();
+        final int[][] captureFormats = {
+                {sampleRate, channels}, {sampleRate, 1}, {DEFAULT_SAMPLE_RATE, channels}, {DEFAULT_SAMPLE_RATE, 1}
+        };
+        for (int[] captureFormat : captureFormats) {
+            mSampleRate = captureFormat[0];
+            mChannels = captureFormat[1];
+            mAudioRecord = createAudioRecord(mSampleRate, mChannels);
+            if (mAudioRecord != null) {
+                break;
+            }
+        }
+        if (mAudioRecord == null) {
+            throw new IOException("Unable to initialise audio capture");
+        }
+
+        try {
+            MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRate, mChannels);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, mConfig.getAudioEncodingBitRate());
+            mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mEncoder.start();
+            mMuxer = new MediaMuxer(fileName, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException | RuntimeException e) {
+            releaseResources();
+            throw new IOException("Unable to initialise audio encoder: " + e.getMessage());
+        }
+
+        mFileName = fileName;
+        mOpenedSampleRate = mSampleRate;
+        mRecording = false;
+        mFinishing = false;
+        mHasRecorded = false;
+        mError = null;
+        mOutputFormat = null;
+        mTrackIndex = -1;
+        mBytesEncoded = 0;
+        mSamplesWritten = 0;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    private AudioRecord createAudioRecord(int sampleRate, int channels) {
+        final int channelConfig = channels == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        final int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            return null;
+        }
+        try {
+            // a larger buffer than the minimum, so that the encoder can fall behind briefly without losing audio
+            AudioRecord audioRecord = new AudioRecord(mConfig.getAudioSource(), sampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT, minBufferSize * 4);
+            if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
+                return audioRecord;
+            }
+            audioRecord.release();
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Unable to create AudioRecord: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Releases everything, leaving the engine ready to open a new file even if releasing fails.
+     *
+     * @throws IOException if the muxer could not be stopped, i.e., the file is not valid
+     */
+    private void releaseResources() throws IOException {
+        RuntimeException muxerError = null;
+        try {
+            if (mAudioRecord != null) {
+                mAudioRecord.release();
+            }
+            if (mEncoder != null) {
+                try {
+                    mEncoder.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                mEncoder.release();
+            }
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Unable to release encoder: " + e.getMessage());
+        }
+        if (mMuxer != null) {
+            try {
+                if (mMuxerStarted) {
+                    mMuxer.stop();
+                }
+            } catch (RuntimeException e) {
+                muxerError = e;
+            }
+            try {
+                mMuxer.release();
+            } catch (RuntimeException e) {
+                if (muxerError == null) {
+                    muxerError = e;
+                }
+            }
+        }
+
+        mAudioRecord = null;
+        mEncoder = null;
+        mMuxer = null;
+        mMuxerStarted = false;
+        mFileName = null;
+        mThread = null;
+        if (muxerError != null) {
+            throw new IOException("Unable to finish recording: " + muxerError.getMessage());
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation") // getInputBuffers/getOutputBuffers are the only option before API 21
+    public void run() {
+        final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        try {
+            ByteBuffer[] inputBuffers = mEncoder.getInputBuffers();
+            while (true) {
+                synchronized (mLock) {
+                    while (!mRecording && !mFinishing) {
+                        mLock.wait();
+                    }
+                    if (mFinishing) {
+                        break;
+                    }
+                }
+
+                final int inputIndex = mEncoder.dequeueInputBuffer(TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    ByteBuffer inputBuffer = inputBuffers[inputIndex];
+                    inputBuffer.clear();
+                    int bytesRead = mAudioRecord.read(inputBuffer, inputBuffer.capacity());
+                    if (bytesRead < 0) {
+                        bytesRead = 0; // e.g., stopped while reading - the buffer must still be returned
+                    }
+                    updateLevels(inputBuffer, bytesRead);
+                    mEncoder.queueInputBuffer(inputIndex, 0, bytesRead, getPresentationTimeUs(), 0);
+                    mBytesEncoded += bytesRead;
+                }
+                drainEncoder(bufferInfo, false);
+            }
+
+            // signal the end of the stream, then wait for the encoder to output everything queued so far
+            int inputIndex = -1;
+            for (int i = 0; i < MAX_END_OF_STREAM_WAIT && inputIndex < 0; i++) {
+                inputIndex = mEncoder.dequeueInputBuffer(TIMEOUT_US);
+            }
+            if (inputIndex >= 0) {
+                mEncoder.queueInputBuffer(inputIndex, 0, 0, getPresentationTimeUs(),
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                drainEncoder(bufferInfo, true);
+            }
+        } catch (InterruptedException ignored) {
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Recording failed", e);
+            mError = e;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void drainEncoder(MediaCodec.BufferInfo bufferInfo, boolean endOfStream) {
+        ByteBuffer[] outputBuffers = mEncoder.getOutputBuffers();
+        int timeouts = 0;
+        while (true) {
+            final int outputIndex = mEncoder.dequeueOutputBuffer(bufferInfo, endOfStream ? TIMEOUT_US : 0);
+            if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream || ++timeouts >= MAX_END_OF_STREAM_WAIT) {
+                    break;
+                }
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = mEncoder.getOutputBuffers();
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mOutputFormat = mEncoder.getOutputFormat();
+            } else if (outputIndex >= 0) {
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    bufferInfo.size = 0; // passed to the muxer via the output format instead
+                }
+                if (bufferInfo.size > 0 && !mMuxerStarted && mOutputFormat != null) {
+                    // only start once we have audio, as a started muxer cannot be stopped without samples
+                    mTrackIndex = mMuxer.addTrack(mOutputFormat);
+                    mMuxer.start();
+                    mMuxerStarted = true;
+                }
+                if (bufferInfo.size > 0 && mMuxerStarted) {
+                    ByteBuffer outputBuffer = outputBuffers[outputIndex];
+                    outputBuffer.position(bufferInfo.offset);
+                    outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                    mMuxer.writeSampleData(mTrackIndex, outputBuffer, bufferInfo);
+                    mSamplesWritten += 1;
+                }
+                mEncoder.releaseOutputBuffer(outputIndex, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private long getPresentationTimeUs() {
+        return mBytesEncoded / (BYTES_PER_SAMPLE * mChannels) * 1000000L / mSampleRate;
+    }
+
+    private void updateLevels(ByteBuffer buffer, int length) {
+        buffer.order(ByteOrder.nativeOrder());
+        int maxAmplitude = 0;
+        double sumOfSquares = 0;
+        for (int i = 0; i + 1 < length; i += BYTES_PER_SAMPLE) {
+            final int sample = buffer.getShort(i);
+            maxAmplitude = Math.max(maxAmplitude, Math.abs(sample));
+            sumOfSquares += sample * sample;
+        }
+        synchronized (mLevelLock) {
+            mMaxAmplitude = Math.max(mMaxAmplitude, maxAmplitude);
+            mSumOfSquares += sumOfSquares;
+            mSampleCount += length / BYTES_PER_SAMPLE;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2013, Nikolai Doronin
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.lassana.recorder;
+
+import android.media.MediaRecorder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records using {@link MediaRecorder}. This cannot pause, so each start records a
+ * new file, and each pause completes it. Preparing does all of the setup except starting.
+ */
+class MediaRecorderEngine implements RecordingEngine {
+
+    private static final int DEFAULT_SAMPLE_RATE = 8000; // MediaRecorder's rate when none is set
+    private static final int AMR_FRAMES_PER_SECOND = 50; // 20 ms frames, for both AMR variants
+    private static final int AMR_NB_MAX_BIT_RATE = 12200;
+    private static final int AMR_WB_MAX_BIT_RATE = 23850;
+
+    private final AudioRecorder.MediaRecorderConfig mConfig;
+    private volatile MediaRecorder mMediaRecorder;
+    private String mPreparedFileName;
+    private boolean mStarted;
+    private volatile int mLastMaxAmplitude;
+
+    public MediaRecorderEngine(AudioRecorder.MediaRecorderConfig config) {
+        mConfig = config;
+    }
+
+    @Override
+    public synchronized void prepare(String fileName) throws IOException {
+        if (mMediaRecorder != null) {
+            if (!mStarted && fileName.equals(mPreparedFileName)) {
+                return;
+            }
+            release();
+        }
+
+        MediaRecorder mediaRecorder = new MediaRecorder();
+        mediaRecorder.setAudioEncodingBitRate(mConfig.getAudioEncodingBitRate());
+        mediaRecorder.setAudioChannels(mConfig.getAudioChannels());
+        mediaRecorder.setAudioSource(mConfig.getAudioSource());
+        mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        if (mConfig.getAudioSamplingRate() > 0) {
+            mediaRecorder.setAudioSamplingRate(mConfig.getAudioSamplingRate());
+        }
+        mediaRecorder.setOutputFile(fileName);
+        mediaRecorder.setAudioEncoder(mConfig.getAudioEncoder());
+        try {
+            mediaRecorder.prepare();
+        } catch (IOException | RuntimeException e) {
+            mediaRecorder.release();
+            throw new IOException("Unable to prepare recording: " + e.getMessage());
+        }
+        mMediaRecorder = mediaRecorder;
+        mPreparedFileName = fileName;
+        mStarted = false;
+    }
+
+    @Override
+    public synchronized void start(String fileName) throws IOException {
+        prepare(fileName); // no-op if already prepared for this file
+        try {
+            mMediaRecorder.start();
+        } catch (RuntimeException e) {
+            release();
+            throw new IOException("Unable to start recording: " + e.getMessage());
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized boolean pause() throws IOException {
+        if (mMediaRecorder != null && !mStarted) {
+            return false; // prepared, but not yet recording - nothing to pause
+        }
+        if (mMediaRecorder != null) {
+            try {
+                mMediaRecorder.stop();
+            } catch (RuntimeException e) {
+                throw new IOException("Unable to stop recording: " + e.getMessage());
+            } finally {
+                mMediaRecorder.release();
+                mMediaRecorder = null;
+                mStarted = false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void finish(String fileName) {
+        // nothing to do - files are completed when paused
+    }
+
+    @Override
+    public synchronized void release() throws IOException {
+        if (mStarted) {
+            pause();
+        } else if (mMediaRecorder != null) {
+            mMediaRecorder.release(); // prepared but never started, so the output file is not valid
+            mMediaRecorder = null;
+            //noinspection ResultOfMethodCallIgnored
+            new File(mPreparedFileName).delete();
+        }
+    }
+
+    @Override
+    public int getMaxAmplitude() {
+        MediaRecorder mediaRecorder = mMediaRecorder;
+        try {
+            mLastMaxAmplitude = mediaRecorder != null ? mediaRecorder.getMaxAmplitude() : 0;
+            return mLastMaxAmplitude;
+        } catch (IllegalStateException e) {
+            return 0; // released while we were reading
+        }
+    }
+
+    @Override
+    public int getRmsAmplitude() {
+        // MediaRecorder only provides the peak - estimate assuming a sine wave
+        return Math.round(mLastMaxAmplitude * 0.7071f);
+    }
+
+    @Override
+    public int getEstimatedBytesPerSecond() {
+        // AMR (the default encoder before AAC was available) has fixed frames, and caps the bit rate
+        switch (mConfig.getAudioEncoder()) {
+            case MediaRecorder.AudioEncoder.DEFAULT:
+            case MediaRecorder.AudioEncoder.AMR_NB:
+                return AudioRecorder.MediaRecorderConfig.estimateBytesPerSecond(Math.min(mConfig
+                        .getAudioEncodingBitRate(), AMR_NB_MAX_BIT_RATE), AMR_FRAMES_PER_SECOND);
+            case MediaRecorder.AudioEncoder.AMR_WB:
+                return AudioRecorder.MediaRecorderConfig.estimateBytesPerSecond(Math.min(mConfig
+                        .getAudioEncodingBitRate(), AMR_WB_MAX_BIT_RATE), AMR_FRAMES_PER_SECOND);
+            default:
+                final int sampleRate = mConfig.getAudioSamplingRate() > 0 ? mConfig.getAudioSamplingRate() :
+                        DEFAULT_SAMPLE_RATE;
+                return AudioRecorder.MediaRecorderConfig.estimateBytesPerSecond(mConfig.getAudioEncodingBitRate(),
+                        sampleRate / AudioRecorder.MediaRecorderConfig.AAC_FRAME_SAMPLES);
+        }
+    }
+}
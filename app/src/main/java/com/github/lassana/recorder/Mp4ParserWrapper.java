@@ -41,6 +41,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -76,6 +77,66 @@ public class Mp4ParserWrapper {
         return rvalue;
     }
 
+    /**
+     * Joins mp4 audios/videos: {@code segmentFileNames}, in order, into {@code targetFileName}.
+     * The result is written to a temporary file and then renamed, so {@code targetFileName}
+     * may itself be the first segment. A single segment is simply renamed.
+     * Segment files are not deleted.
+     */
+    public static boolean merge(List<String> segmentFileNames, String targetFileName) {
+        final File targetFile = new File(targetFileName);
+        if (segmentFileNames.size() == 1) {
+            File segmentFile = new File(segmentFileNames.get(0));
+            if (segmentFile.equals(targetFile) || segmentFile.renameTo(targetFile)) {
+                return true;
+            }
+        }
+
+        final File tmpFile = new File(targetFileName + ".tmp");
+        final List<FileDataSourceImpl> sources = new ArrayList<>();
+        try {
+            final List<Movie> movies = new ArrayList<>();
+            for (String segmentFileName : segmentFileNames) {
+                FileDataSourceImpl source = new FileDataSourceImpl(segmentFileName);
+                sources.add(source);
+                movies.add(MovieCreator.build(source));
+            }
+
+            final Movie finalMovie = new Movie();
+            final int trackCount = movies.get(0).getTracks().size();
+            for (int i = 0; i < trackCount; ++i) {
+                Track[] parts = new Track[movies.size()];
+                for (int j = 0; j < parts.length; ++j) {
+                    parts[j] = movies.get(j).getTracks().get(i);
+                }
+                finalMovie.addTrack(parts.length == 1 ? parts[0] : new AppendTrack(parts));
+            }
+
+            final Container container = new DefaultMp4Builder().build(finalMovie);
+            final FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                container.writeContainer(fos.getChannel());
+            } finally {
+                fos.close();
+            }
+
+            if (tmpFile.renameTo(targetFile)) {
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Merge mp4 files exception", e);
+        } finally {
+            for (FileDataSourceImpl source : sources) {
+                try {
+                    source.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        tmpFile.delete();
+        return false;
+    }
 
     public static void copyFile(final String from, final String destination)
             throws IOException {
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2013, Nikolai Doronin
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.github.lassana.recorder;
+
+import java.io.IOException;
+
+/**
+ * Captures audio to a file on behalf of {@link AudioRecorder}. Methods other than
+ * {@link #getMaxAmplitude()} may block, so are called from a background thread.
+ */
+interface RecordingEngine {
+
+    /**
+     * Sets up everything needed to record to {@code fileName}, so that a subsequent
+     * {@link #start(String)} with the same file can begin immediately.
+     */
+    void prepare(String fileName) throws IOException;
+
+    /**
+     * Starts recording to {@code fileName}, or resumes if that file is still open
+     * from a previous {@link #pause()}. Any other open file is finished first.
+     */
+    void start(String fileName) throws IOException;
+
+    /**
+     * Pauses recording.
+     *
+     * @return true if the file is now complete, false if it remains open, to be
+     * resumed by {@link #start(String)} or completed by {@link #finish(String)}
+     */
+    boolean pause() throws IOException;
+
+    /**
+     * Completes {@code fileName} if it is still open.
+     */
+    void finish(String fileName) throws IOException;
+
+    /**
+     * Releases any prepared or recording resources. An open file is completed.
+     */
+    void release() throws IOException;
+
+    /**
+     * Returns the maximum absolute amplitude sampled since the last call, as
+     * {@link android.media.MediaRecorder#getMaxAmplitude()}.
+     */
+    int getMaxAmplitude();
+
+    /**
+     * Returns the RMS amplitude of the audio sampled since the last call.
+     */
+    int getRmsAmplitude();
+
+    /**
+     * Returns the approximate size of a recording per second of audio, in the format most recently
+     * opened, or the format that will be tried first if nothing has been opened yet. Does not block.
+     */
+    int getEstimatedBytesPerSecond();
+}
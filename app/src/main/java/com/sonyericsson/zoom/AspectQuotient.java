@@ -27,12 +27,15 @@
 
 package com.sonyericsson.zoom;
 
-import java.util.Observable;
-
 /**
  * Class that holds the aspect quotient, defined as content aspect ratio divided by view aspect ratio.
  */
-public class AspectQuotient extends Observable {
+public class AspectQuotient extends ChangeNotifier {
+
+	/**
+	 * Change flag for the aspect quotient
+	 */
+	public static final int CHANGED_ASPECT_QUOTIENT = 1;
 
 	/**
 	 * Aspect quotient
@@ -63,7 +66,7 @@ public class AspectQuotient extends Observable {
 
 		if (aspectQuotient != mAspectQuotient) {
 			mAspectQuotient = aspectQuotient;
-			setChanged();
+			setChanged(CHANGED_ASPECT_QUOTIENT);
 		}
 	}
 
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sonyericsson.zoom;
+
+/**
+ * Base class for objects that notify listeners of changes. A lightweight replacement for java.util.Observable:
+ * listeners are held in a copy-on-write array, so notifying them neither locks nor allocates, and changes are recorded
+ * as flags so that several mutations can be reported in a single notification.
+ */
+public abstract class ChangeNotifier {
+
+	/**
+	 * Listener for changes
+	 */
+	public interface ChangeListener {
+		/**
+		 * Called when the notifier has changed
+		 *
+		 * @param notifier The object that has changed
+		 * @param changes  Flags describing what has changed, as defined by the notifier
+		 */
+		void onChanged(ChangeNotifier notifier, int changes);
+	}
+
+	/**
+	 * Empty listener array, shared to avoid allocation
+	 */
+	private static final ChangeListener[] NO_LISTENERS = new ChangeListener[0];
+
+	/**
+	 * Current listeners - replaced rather than modified when listeners are added or removed
+	 */
+	private volatile ChangeListener[] mListeners = NO_LISTENERS;
+
+	/**
+	 * Changes since listeners were last notified
+	 */
+	private int mChanges;
+
+	/**
+	 * Adds a listener, if it is not already registered
+	 *
+	 * @param listener The listener to add
+	 */
+	public synchronized void addListener(ChangeListener listener) {
+		final ChangeListener[] listeners = mListeners;
+		for (ChangeListener existing : listeners) {
+			if (existing == listener) {
+				return;
+			}
+		}
+		final ChangeListener[] newListeners = new ChangeListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+		newListeners[listeners.length] = listener;
+		mListeners = newListeners;
+	}
+
+	/**
+	 * Removes a listener
+	 *
+	 * @param listener The listener to remove
+	 */
+	public synchronized void removeListener(ChangeListener listener) {
+		final ChangeListener[] listeners = mListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				if (listeners.length == 1) {
+					mListeners = NO_LISTENERS;
+				} else {
+					final ChangeListener[] newListeners = new ChangeListener[listeners.length - 1];
+					System.arraycopy(listeners, 0, newListeners, 0, i);
+					System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+					mListeners = newListeners;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Records a change, to be reported at the next call to notifyListeners()
+	 *
+	 * @param changes Flags describing the change
+	 */
+	protected void setChanged(int changes) {
+		mChanges |= changes;
+	}
+
+	/**
+	 * Check whether there are changes that have not yet been reported
+	 *
+	 * @return true if there are unreported changes
+	 */
+	public boolean hasChanged() {
+		return mChanges != 0;
+	}
+
+	/**
+	 * Notifies all listeners of the changes since the last notification, if there have been any
+	 */
+	public void notifyListeners() {
+		final int changes = mChanges;
+		if (changes == 0) {
+			return;
+		}
+		mChanges = 0;
+
+		final ChangeListener[] listeners = mListeners;
+		for (ChangeListener listener : listeners) {
+			listener.onChanged(this, changes);
+		}
+	}
+}
@@ -27,11 +27,13 @@
 
 package com.sonyericsson.zoom;
 
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.Handler;
 import android.os.SystemClock;
+import android.view.Choreographer;
 
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The DynamicZoomControl is responsible for controlling a ZoomState. It makes sure that pan movement follows the
@@ -40,7 +42,7 @@ import java.util.Observer;
  * In order to implement these control mechanisms access to certain content and view state data is required which is
  * made possible through the ZoomContentViewState.
  */
-public class DynamicZoomControl implements Observer {
+public class DynamicZoomControl implements ChangeNotifier.ChangeListener {
 
 	/**
 	 * Minimum zoom level limit
@@ -63,9 +65,9 @@ public class DynamicZoomControl implements Observer {
 	private static final float REST_POSITION_TOLERANCE = 0.01f;
 
 	/**
-	 * Target FPS when animating behavior such as fling and snap to
+	 * Target FPS when animating behavior such as fling and snap to (only used when Choreographer is not available)
 	 */
-	private static final int FPS = 50;
+	private static final int FPS = 60;
 
 	/**
 	 * Factor applied to pan motion outside of pan snap limits.
@@ -113,9 +115,25 @@ public class DynamicZoomControl implements Observer {
 	private float mPanMaxY;
 
 	/**
-	 * Handler for posting runnables
+	 * The time at which the current fling comes to rest, in the SystemClock.uptimeMillis() time base
 	 */
-	private final Handler mHandler = new Handler();
+	private long mFlingRestTime;
+
+	/**
+	 * The number of frames rendered so far in the current fling
+	 */
+	private int mFlingFrameCount;
+
+	/**
+	 * Listener notified when a fling comes to rest, or null
+	 */
+	private FlingListener mFlingListener;
+
+	/**
+	 * Schedules animation frames - synchronised with the display's refresh where possible
+	 */
+	private final FrameScheduler mFrameScheduler = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? new
+			ChoreographerFrameScheduler() : new HandlerFrameScheduler();
 
 	/**
 	 * Creates new zoom control
@@ -137,11 +155,11 @@ public class DynamicZoomControl implements Observer {
 	 */
 	public void setAspectQuotient(AspectQuotient aspectQuotient) {
 		if (mAspectQuotient != null) {
-			mAspectQuotient.deleteObserver(this);
+			mAspectQuotient.removeListener(this);
 		}
 
 		mAspectQuotient = aspectQuotient;
-		mAspectQuotient.addObserver(this);
+		mAspectQuotient.addListener(this);
 	}
 
 	/**
@@ -153,6 +171,27 @@ public class DynamicZoomControl implements Observer {
 		return mState;
 	}
 
+	/**
+	 * Listener interface for fling events, e.g., for measuring animation performance
+	 */
+	public interface FlingListener {
+		/**
+		 * Called when a fling animation has come to rest (but not if it is stopped early)
+		 *
+		 * @param frameCount The number of frames that were rendered during the fling
+		 */
+		void flingCompleted(int frameCount);
+	}
+
+	/**
+	 * Set the listener to be notified of fling events
+	 *
+	 * @param listener The listener, or null to remove the current listener
+	 */
+	public void setFlingListener(FlingListener listener) {
+		mFlingListener = listener;
+	}
+
 	/**
 	 * Zoom
 	 *
@@ -178,7 +217,7 @@ public class DynamicZoomControl implements Observer {
 
 		updatePanLimits();
 
-		mState.notifyObservers();
+		mState.notifyListeners();
 	}
 
 	/**
@@ -206,31 +245,84 @@ public class DynamicZoomControl implements Observer {
 		mState.setPanX(newPanX);
 		mState.setPanY(newPanY);
 
-		mState.notifyObservers();
+		mState.notifyListeners();
+	}
+
+	/**
+	 * Updates dynamics state for an animation frame
+	 *
+	 * @param frameTime The time the frame started, in the SystemClock.uptimeMillis() time base
+	 */
+	private void onFrame(long frameTime) {
+		mPanDynamicsX.update(frameTime);
+		mPanDynamicsY.update(frameTime);
+		final boolean isAtRest = frameTime >= mFlingRestTime; // known exactly, as the dynamics are solved analytically
+		mState.setPanX(mPanDynamicsX.getPosition());
+		mState.setPanY(mPanDynamicsY.getPosition());
+
+		mFlingFrameCount += 1;
+		if (!isAtRest) {
+			mFrameScheduler.postFrame();
+		} else if (mFlingListener != null) {
+			mFlingListener.flingCompleted(mFlingFrameCount);
+		}
+
+		mState.notifyListeners();
+	}
+
+	/**
+	 * Requests calls to onFrame
+	 */
+	private interface FrameScheduler {
+		void postFrame();
+
+		void cancel();
 	}
 
 	/**
-	 * Runnable that updates dynamics state
+	 * Schedules frames at the display's refresh rate, timed by the start of each vsync
 	 */
-	private final Runnable mUpdateRunnable = new Runnable() {
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private class ChoreographerFrameScheduler implements FrameScheduler, Choreographer.FrameCallback {
+		private final Choreographer mChoreographer = Choreographer.getInstance();
+
+		public void postFrame() {
+			mChoreographer.postFrameCallback(this);
+		}
+
+		public void cancel() {
+			mChoreographer.removeFrameCallback(this);
+		}
+
+		public void doFrame(long frameTimeNanos) {
+			// frame times use the same clock as SystemClock.uptimeMillis()
+			onFrame(TimeUnit.NANOSECONDS.toMillis(frameTimeNanos));
+		}
+	}
+
+	/**
+	 * Schedules frames at a fixed rate, for devices without Choreographer
+	 */
+	private class HandlerFrameScheduler implements FrameScheduler, Runnable {
+		private final Handler mHandler = new Handler();
+		private long mNextFrameTime;
+
+		public void postFrame() {
+			// aim for a steady rate, but never schedule in the past if a frame has overrun
+			final long now = SystemClock.uptimeMillis();
+			mNextFrameTime = Math.max(now, mNextFrameTime + 1000 / FPS);
+			mHandler.postAtTime(this, mNextFrameTime);
+		}
+
+		public void cancel() {
+			mHandler.removeCallbacks(this);
+			mNextFrameTime = 0;
+		}
+
 		public void run() {
-			final long startTime = SystemClock.uptimeMillis();
-			mPanDynamicsX.update(startTime);
-			mPanDynamicsY.update(startTime);
-			final boolean isAtRest = mPanDynamicsX.isAtRest(REST_VELOCITY_TOLERANCE,
-					REST_POSITION_TOLERANCE) && mPanDynamicsY.isAtRest(REST_VELOCITY_TOLERANCE,
-					REST_POSITION_TOLERANCE);
-			mState.setPanX(mPanDynamicsX.getPosition());
-			mState.setPanY(mPanDynamicsY.getPosition());
-
-			if (!isAtRest) {
-				final long stopTime = SystemClock.uptimeMillis();
-				mHandler.postDelayed(mUpdateRunnable, 1000 / FPS - (stopTime - startTime));
-			}
-
-			mState.notifyObservers();
+			onFrame(SystemClock.uptimeMillis());
 		}
-	};
+	}
 
 	/**
 	 * Release control and start pan fling animation
@@ -250,14 +342,20 @@ public class DynamicZoomControl implements Observer {
 		mPanDynamicsY.setMinPosition(mPanMinY);
 		mPanDynamicsY.setMaxPosition(mPanMaxY);
 
-		mHandler.post(mUpdateRunnable);
+		mFlingRestTime = now + Math.max(mPanDynamicsX.getTimeToRest(REST_VELOCITY_TOLERANCE,
+				REST_POSITION_TOLERANCE), mPanDynamicsY.getTimeToRest(REST_VELOCITY_TOLERANCE,
+				REST_POSITION_TOLERANCE));
+
+		mFlingFrameCount = 0;
+		mFrameScheduler.cancel();
+		mFrameScheduler.postFrame();
 	}
 
 	/**
 	 * Stop fling animation
 	 */
 	public void stopFling() {
-		mHandler.removeCallbacks(mUpdateRunnable);
+		mFrameScheduler.cancel();
 	}
 
 	/**
@@ -296,9 +394,9 @@ public class DynamicZoomControl implements Observer {
 		mPanMaxY = .5f + getMaxPanDelta(zoomY);
 	}
 
-	// Observable interface implementation
+	// ChangeListener interface implementation
 
-	public void update(Observable observable, Object data) {
+	public void onChanged(ChangeNotifier notifier, int changes) {
 		limitZoom();
 		updatePanLimits();
 	}
@@ -31,11 +31,6 @@ package com.sonyericsson.zoom;
  * Utility class used to handle flinging within a specified limit.
  */
 public abstract class Dynamics {
-	/**
-	 * The maximum delta time, in milliseconds, between two updates
-	 */
-	private static final int MAX_TIMESTEP = 50;
-
 	/**
 	 * The current position
 	 */
@@ -126,20 +121,12 @@ public abstract class Dynamics {
 	}
 
 	/**
-	 * Updates the position and velocity.
+	 * Updates the position and velocity to the given time, and sets the time of the last update. Times before the
+	 * last update (e.g., a frame that started before our state was set) should be ignored.
 	 *
 	 * @param now The current time
 	 */
-	public void update(final long now) {
-		int dt = (int) (now - mLastTime);
-		if (dt > MAX_TIMESTEP) {
-			dt = MAX_TIMESTEP;
-		}
-
-		onUpdate(dt);
-
-		mLastTime = now;
-	}
+	public abstract void update(final long now);
 
 	/**
 	 * Gets the distance to the closest limit (max and min position).
@@ -158,11 +145,4 @@ public abstract class Dynamics {
 
 		return distanceToLimit;
 	}
-
-	/**
-	 * Updates the position and velocity.
-	 *
-	 * @param dt The delta time since last time
-	 */
-	abstract protected void onUpdate(int dt);
 }
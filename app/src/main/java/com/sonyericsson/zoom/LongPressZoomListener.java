@@ -148,9 +148,9 @@ public class LongPressZoomListener implements View.OnTouchListener {
 		}
 	};
 
-	// returns the last position touched on the screen (for use with onClick)
-	public PointF getLastTouchPoint() {
-		return new PointF(mX, mY);
+	// gets the last position touched on the screen (for use with onClick)
+	public void getLastTouchPoint(PointF out) {
+		out.set(mX, mY);
 	}
 
 	// implements View.OnTouchListener
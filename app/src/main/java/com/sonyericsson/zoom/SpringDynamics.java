@@ -29,10 +29,46 @@ package com.sonyericsson.zoom;
 
 /**
  * SpringDynamics is a Dynamics object that uses friction and spring physics to snap to boundaries and give a natural
- * and organic dynamic.
+ * and organic dynamic. The motion is solved analytically, so the state at any time can be calculated directly,
+ * regardless of how long it has been since the last update.
  */
 public class SpringDynamics extends Dynamics {
 
+	/**
+	 * Maximum number of transitions between friction (inside limits) and spring (outside limits) motion in one update
+	 */
+	private static final int MAX_PHASES = 8;
+
+	/**
+	 * Maximum time to rest, in seconds, that we report (motion that does not come to rest reports this value)
+	 */
+	private static final double MAX_REST_TIME = 10;
+
+	/**
+	 * Interval, in seconds, at which spring motion is checked for coming to rest
+	 */
+	private static final double REST_SEARCH_STEP = 0.01;
+
+	/**
+	 * Maximum number of checks for spring motion coming to rest in each phase (the interval is increased if necessary)
+	 */
+	private static final int MAX_REST_SEARCH_STEPS = 200;
+
+	/**
+	 * Maximum number of Newton iterations used to find the time at which a decaying spring motion is within tolerance
+	 */
+	private static final int MAX_DECAY_ITERATIONS = 8;
+
+	/**
+	 * Precision, in seconds, at which to stop refining the time at which a decaying spring motion is within tolerance
+	 */
+	private static final double DECAY_TIME_PRECISION = 0.001;
+
+	/**
+	 * Tolerance used when comparing damping ratio to 1 (critical damping)
+	 */
+	private static final double CRITICAL_DAMPING_TOLERANCE = 1e-4;
+
 	/**
 	 * Friction factor
 	 */
@@ -48,6 +84,16 @@ public class SpringDynamics extends Dynamics {
 	 */
 	private float mDamping;
 
+	/**
+	 * Position resulting from the most recent advanceFriction or advanceSpring call
+	 */
+	private double mSolvedPosition;
+
+	/**
+	 * Velocity resulting from the most recent advanceFriction or advanceSpring call
+	 */
+	private double mSolvedVelocity;
+
 	/**
 	 * Set friction parameter, friction physics are applied when inside of snap bounds.
 	 *
@@ -68,37 +114,282 @@ public class SpringDynamics extends Dynamics {
 		mDamping = dampingRatio * 2 * (float) Math.sqrt(stiffness);
 	}
 
+	@Override
+	public void update(final long now) {
+		// no need to limit or subdivide the time step, as the solution is exact
+		if (now > mLastTime) {
+			advance((now - mLastTime) / 1000d);
+			mLastTime = now;
+		}
+	}
+
 	/**
-	 * Calculate acceleration at the current state
+	 * Calculates how long it will be until the motion comes to rest, with no further updates or changes to limits. Each
+	 * phase of the motion is solved directly rather than by stepping through it, and spring phases are only checked a
+	 * limited number of times, so this is cheap enough to call for every fling.
 	 *
-	 * @return Current acceleration
+	 * @param velocityTolerance Velocity is regarded as 0 if less than velocityTolerance
+	 * @param positionTolerance Position is regarded as inside the limits even if positionTolerance above or below
+	 * @return The time to rest in milliseconds (or a large value if the motion does not come to rest within 10 seconds)
 	 */
-	private float calculateAcceleration() {
-		float acceleration;
+	public long getTimeToRest(final float velocityTolerance, final float positionTolerance) {
+		double x = mPosition;
+		double v = mVelocity;
+		double elapsed = 0;
+		for (int phase = 0; phase < MAX_PHASES && elapsed < MAX_REST_TIME; phase++) {
+			final boolean outsideMax = x > mMaxPosition || (x == mMaxPosition && v > 0);
+			final boolean outsideMin = x < mMinPosition || (x == mMinPosition && v < 0);
+			final double restTime;
+			final double phaseTime;
+			if ((outsideMax || outsideMin) && mStiffness > 0) {
+				final double limit = outsideMax ? mMaxPosition : mMinPosition;
+				restTime = getSpringRestTime(x - limit, v, velocityTolerance, positionTolerance);
+				phaseTime = advanceSpring(x - limit, v, restTime);
+				x = limit + mSolvedPosition;
+			} else {
+				restTime = getFrictionRestTime(v, velocityTolerance);
+				phaseTime = advanceFriction(x, v, restTime);
+				x = mSolvedPosition;
+			}
+			if (phaseTime >= restTime) {
+				elapsed += restTime; // at rest before this phase ended
+				return Math.round(Math.min(elapsed, MAX_REST_TIME) * 1000);
+			}
+			v = mSolvedVelocity;
+			elapsed += phaseTime;
+		}
+		return Math.round(MAX_REST_TIME * 1000);
+	}
 
-		final float distanceFromLimit = getDistanceToLimit();
-		if (distanceFromLimit != 0) {
-			acceleration = distanceFromLimit * mStiffness - mDamping * mVelocity;
-		} else {
-			acceleration = -mFriction * mVelocity;
+	/**
+	 * @return The time, in seconds, until friction slows the given velocity to within tolerance
+	 */
+	private double getFrictionRestTime(double v, double velocityTolerance) {
+		if (Math.abs(v) < velocityTolerance) {
+			return 0;
+		} else if (mFriction > 0) {
+			return Math.log(Math.abs(v) / velocityTolerance) / mFriction; // v(t) = v e^(-ft)
 		}
+		return MAX_REST_TIME;
+	}
 
-		return acceleration;
+	/**
+	 * Finds the time at which damped spring motion comes to rest, unless it returns inside the limits first
+	 *
+	 * @param d The displacement from the limit
+	 * @param v The velocity
+	 * @return The time to rest, in seconds (or a time after the spring returns inside the limits)
+	 */
+	private double getSpringRestTime(double d, double v, double velocityTolerance, double positionTolerance) {
+		// the decay envelope gives a time by which the motion is definitely at rest, but it can come to rest earlier
+		// (e.g., as the spring turns it around just outside the limit), so we also check at intervals before then
+		final double decayTime = getSpringDecayTime(d, v, velocityTolerance, positionTolerance);
+		final double step = Math.max(REST_SEARCH_STEP, decayTime / MAX_REST_SEARCH_STEPS);
+		for (double t = 0; t < decayTime; t += step) {
+			if (advanceSpring(d, v, t) < t) {
+				break; // returned inside the limits before this time
+			}
+			if (Math.abs(mSolvedPosition) < positionTolerance && Math.abs(mSolvedVelocity) < velocityTolerance) {
+				return t;
+			}
+		}
+		return decayTime;
 	}
 
-	@Override
-	protected void onUpdate(int dt) {
-		// Calculate dt in seconds as float
-		final float fdt = dt / 1000f;
+	/**
+	 * Finds a time after which damped spring motion is within tolerance, using an envelope of the form
+	 * (p + q t) e^(-rate t) for both its displacement and its velocity
+	 *
+	 * @param d The displacement from the limit
+	 * @param v The velocity
+	 * @return The time, in seconds, after which both displacement and velocity are within tolerance
+	 */
+	private double getSpringDecayTime(double d, double v, double velocityTolerance, double positionTolerance) {
+		final double omega = Math.sqrt(mStiffness);
+		final double zeta = mDamping / (2 * omega);
+
+		if (zeta < 1 - CRITICAL_DAMPING_TOLERANCE) {
+			// underdamped - see advanceSpring for the solution, whose amplitudes are fixed
+			final double omegaD = omega * Math.sqrt(1 - zeta * zeta);
+			final double decayRate = zeta * omega;
+			final double b = (v + decayRate * d) / omegaD;
+			final double amplitude = Math.hypot(d, b);
+			final double velocityAmplitude = Math.hypot(b * omegaD - decayRate * d, d * omegaD + decayRate * b);
+			return Math.max(getDecayTime(amplitude, 0, decayRate, positionTolerance), getDecayTime
+					(velocityAmplitude, 0, decayRate, velocityTolerance));
 
-		// Calculate current acceleration
-		final float a = calculateAcceleration();
+		} else if (zeta <= 1 + CRITICAL_DAMPING_TOLERANCE) {
+			// critically damped: d(t) = (a + b t) e^(-omega t) and v(t) = (b - omega a - omega b t) e^(-omega t)
+			final double b = v + omega * d;
+			return Math.max(getDecayTime(Math.abs(d), Math.abs(b), omega, positionTolerance), getDecayTime(Math.abs
+					(b - omega * d), Math.abs(omega * b), omega, velocityTolerance));
+
+		} else {
+			// overdamped: both terms decay at least as quickly as the slower one, e^(r1 t)
+			final double root = omega * Math.sqrt(zeta * zeta - 1);
+			final double r1 = -zeta * omega + root;
+			final double r2 = -zeta * omega - root;
+			final double c2 = (v - r1 * d) / (r2 - r1);
+			final double c1 = d - c2;
+			return Math.max(getDecayTime(Math.abs(c1) + Math.abs(c2), 0, -r1, positionTolerance), getDecayTime(Math
+					.abs(c1 * r1) + Math.abs(c2 * r2), 0, -r1, velocityTolerance));
+		}
+	}
+
+	/**
+	 * Finds the time after which (p + q t) e^(-rate t) stays below tolerance
+	 *
+	 * @return The time in seconds - never less than the exact value, as Newton's method approaches it from above
+	 */
+	private static double getDecayTime(double p, double q, double rate, double tolerance) {
+		if (rate <= 0) {
+			return MAX_REST_TIME;
+		}
+		if (q == 0) {
+			return p < tolerance ? 0 : Math.log(p / tolerance) / rate;
+		}
+
+		// solve g(t) = ln(p + q t) - rate t - ln(tolerance) = 0 after the envelope's peak; g is concave, so after one
+		// step from the left every estimate is above the root, and estimates decrease towards it
+		final double peakTime = Math.max(0, 1 / rate - p / q);
+		if (Math.log(p + q * peakTime) - rate * peakTime < Math.log(tolerance)) {
+			return 0; // always within tolerance
+		}
+		double t = peakTime + 1 / rate;
+		for (int i = 0; i < MAX_DECAY_ITERATIONS; i++) {
+			final double g = Math.log(p + q * t) - rate * t - Math.log(tolerance);
+			final double step = g / (q / (p + q * t) - rate);
+			t -= step;
+			if (Math.abs(step) < DECAY_TIME_PRECISION && g <= 0) {
+				break;
+			}
+		}
+		return Math.max(0, t);
+	}
+
+	/**
+	 * Advances the position and velocity
+	 *
+	 * @param time The time to advance by, in seconds
+	 */
+	private void advance(double time) {
+		double x = mPosition;
+		double v = mVelocity;
+		for (int phase = 0; phase < MAX_PHASES && time > 0; phase++) {
+			final boolean outsideMax = x > mMaxPosition || (x == mMaxPosition && v > 0);
+			final boolean outsideMin = x < mMinPosition || (x == mMinPosition && v < 0);
+			final double phaseTime;
+			if ((outsideMax || outsideMin) && mStiffness > 0) {
+				final double limit = outsideMax ? mMaxPosition : mMinPosition;
+				phaseTime = advanceSpring(x - limit, v, time);
+				x = limit + mSolvedPosition;
+			} else {
+				phaseTime = advanceFriction(x, v, time);
+				x = mSolvedPosition;
+			}
+			v = mSolvedVelocity;
+			time -= phaseTime;
+		}
+		mPosition = (float) x;
+		mVelocity = (float) v;
+	}
 
-		// Calculate next position based on current velocity and acceleration
-		mPosition += mVelocity * fdt + .5f * a * fdt * fdt;
+	/**
+	 * Solves friction motion (inside the limits), stopping early if a limit is reached
+	 *
+	 * @return The time actually advanced
+	 */
+	private double advanceFriction(double x, double v, double time) {
+		// find the time at which we would reach the limit we're heading towards, if any
+		final double limit = v > 0 ? mMaxPosition : mMinPosition;
+		double limitTime = Double.MAX_VALUE;
+		if (v != 0) {
+			final double distance = limit - x;
+			if (mFriction > 0) {
+				final double fraction = 1 - distance * mFriction / v; // e^(-ft) at the limit
+				if (fraction > 0) {
+					limitTime = -Math.log(fraction) / mFriction;
+				}
+			} else {
+				limitTime = distance / v;
+			}
+		}
 
-		// Update velocity
-		mVelocity += a * fdt;
+		final double t = Math.min(time, limitTime);
+		if (mFriction > 0) {
+			final double decay = Math.exp(-mFriction * t);
+			mSolvedPosition = t == limitTime ? limit : x + v / mFriction * (1 - decay);
+			mSolvedVelocity = v * decay;
+		} else {
+			mSolvedPosition = t == limitTime ? limit : x + v * t;
+			mSolvedVelocity = v;
+		}
+		return t;
 	}
 
+	/**
+	 * Solves damped spring motion (outside the limits), stopping early if the spring returns inside the limits
+	 *
+	 * @param d    The displacement from the limit
+	 * @param v    The velocity
+	 * @param time The maximum time to advance, in seconds
+	 * @return The time actually advanced
+	 */
+	private double advanceSpring(double d, double v, double time) {
+		final double omega = Math.sqrt(mStiffness);
+		final double zeta = mDamping / (2 * omega);
+
+		double t;
+		if (zeta < 1 - CRITICAL_DAMPING_TOLERANCE) {
+			// underdamped: d(t) = e^(-zeta omega t) (a cos(omegaD t) + b sin(omegaD t))
+			final double omegaD = omega * Math.sqrt(1 - zeta * zeta);
+			final double decayRate = zeta * omega;
+			final double a = d;
+			final double b = (v + decayRate * d) / omegaD;
+
+			// first time at which the displacement crosses zero
+			double angle = Math.atan2(-a, b);
+			if (angle <= 0) {
+				angle += Math.PI;
+			}
+			t = Math.min(time, angle / omegaD);
+
+			final double decay = Math.exp(-decayRate * t);
+			final double cos = Math.cos(omegaD * t);
+			final double sin = Math.sin(omegaD * t);
+			mSolvedPosition = t < time ? 0 : decay * (a * cos + b * sin);
+			mSolvedVelocity = decay * ((b * omegaD - decayRate * a) * cos - (a * omegaD + decayRate * b) * sin);
+
+		} else if (zeta <= 1 + CRITICAL_DAMPING_TOLERANCE) {
+			// critically damped: d(t) = (a + b t) e^(-omega t)
+			final double a = d;
+			final double b = v + omega * d;
+			t = time;
+			if (b != 0 && -a / b > 0) {
+				t = Math.min(time, -a / b);
+			}
+
+			final double decay = Math.exp(-omega * t);
+			mSolvedPosition = t < time ? 0 : (a + b * t) * decay;
+			mSolvedVelocity = (b - omega * (a + b * t)) * decay;
+
+		} else {
+			// overdamped: d(t) = c1 e^(r1 t) + c2 e^(r2 t)
+			final double root = omega * Math.sqrt(zeta * zeta - 1);
+			final double r1 = -zeta * omega + root;
+			final double r2 = -zeta * omega - root;
+			final double c2 = (v - r1 * d) / (r2 - r1);
+			final double c1 = d - c2;
+			t = time;
+			if (c1 != 0 && -c2 / c1 > 1) { // i.e., the crossing time is positive
+				t = Math.min(time, Math.log(-c2 / c1) / (r1 - r2));
+			}
+
+			final double e1 = Math.exp(r1 * t);
+			final double e2 = Math.exp(r2 * t);
+			mSolvedPosition = t < time ? 0 : c1 * e1 + c2 * e2;
+			mSolvedVelocity = c1 * r1 * e1 + c2 * r2 * e2;
+		}
+		return t;
+	}
 }
@@ -27,13 +27,26 @@
 
 package com.sonyericsson.zoom;
 
-import java.util.Observable;
-
 /**
  * A ZoomState holds zoom and pan values and allows the user to read and listen to changes. Clients that modify
- * ZoomState should call notifyObservers()
+ * ZoomState should call notifyListeners()
  */
-public class ZoomState extends Observable {
+public class ZoomState extends ChangeNotifier {
+	/**
+	 * Change flag for pan-x
+	 */
+	public static final int CHANGED_PAN_X = 1;
+
+	/**
+	 * Change flag for pan-y
+	 */
+	public static final int CHANGED_PAN_Y = 1 << 1;
+
+	/**
+	 * Change flag for zoom
+	 */
+	public static final int CHANGED_ZOOM = 1 << 2;
+
 	/**
 	 * Zoom level A value of 1.0 means the content fits the view.
 	 */
@@ -106,7 +119,7 @@ public class ZoomState extends Observable {
 	public void setPanX(float panX) {
 		if (panX != mPanX) {
 			mPanX = panX;
-			setChanged();
+			setChanged(CHANGED_PAN_X);
 		}
 	}
 
@@ -118,7 +131,7 @@ public class ZoomState extends Observable {
 	public void setPanY(float panY) {
 		if (panY != mPanY) {
 			mPanY = panY;
-			setChanged();
+			setChanged(CHANGED_PAN_Y);
 		}
 	}
 
@@ -130,7 +143,7 @@ public class ZoomState extends Observable {
 	public void setZoom(float zoom) {
 		if (zoom != mZoom) {
 			mZoom = zoom;
-			setChanged();
+			setChanged(CHANGED_ZOOM);
 		}
 	}
 
@@ -126,7 +126,12 @@ public class Stream implements Serializable {
         }
     }
 
-    private static long getExpires(String resource) {
+    /**
+     * @param resource a (signed) stream url
+     * @return the time at which the url expires, in milliseconds since the epoch, or, if the url does not specify
+     * an expiry time, the current time plus {@link #DEFAULT_URL_LIFETIME}
+     */
+    public static long getExpires(String resource) {
         String query = resource.substring(Math.min(resource.length(), resource.indexOf("?")+1),
                 resource.length());
         for (String s : query.split("&")) {